@@ -1,10 +1,12 @@
 """Defines the VNS protocol and some associated helper functions."""
 
+import os
 import re
 from socket import inet_aton, inet_ntoa
 import struct
 
 from ltprotocol.ltprotocol import LTMessage, LTProtocol, LTTwistedServer
+from twisted.internet import reactor
 
 VNS_DEFAULT_PORT = 3250
 VNS_MESSAGES = []
@@ -20,27 +22,43 @@ class VNSOpen(LTMessage):
     def get_type():
         return 1
 
-    def __init__(self, vhost):
+    def __init__(self, vhost, caps=0, max_cmd_len=0):
         LTMessage.__init__(self)
         self.vhost = str(vhost)
+        self.caps = caps
+        self.max_cmd_len = max_cmd_len
 
     def length(self):
+        if self.caps:
+            return VNSOpen.SIZE + VNSOpen.CAPS_SIZE
         return VNSOpen.SIZE
 
     FORMAT = '> %us' % (IDSIZE)
     SIZE = struct.calcsize(FORMAT)
 
+    # Capabilities the client offers (see VNSCapabilities), and the longest
+    # message it accepts; only present if it offers any
+    CAPS_FORMAT = '> II'
+    CAPS_SIZE = struct.calcsize(CAPS_FORMAT)
+
     def pack(self):
-        return struct.pack(VNSOpen.FORMAT, self.vhost)
+        body = struct.pack(VNSOpen.FORMAT, self.vhost)
+        if self.caps:
+            body += struct.pack(VNSOpen.CAPS_FORMAT, self.caps, self.max_cmd_len)
+        return body
 
     @staticmethod
     def unpack(body):
-        t = struct.unpack(VNSOpen.FORMAT, body)
+        t = struct.unpack(VNSOpen.FORMAT, body[:VNSOpen.SIZE])
         vhost = strip_null_chars(t[0])
-        return VNSOpen(vhost)
+        caps, max_cmd_len = 0, 0
+        if len(body) >= VNSOpen.SIZE + VNSOpen.CAPS_SIZE:
+            caps, max_cmd_len = struct.unpack(VNSOpen.CAPS_FORMAT,
+                body[VNSOpen.SIZE:VNSOpen.SIZE + VNSOpen.CAPS_SIZE])
+        return VNSOpen(vhost, caps, max_cmd_len)
 
     def __str__(self):
-        return 'OPEN: host=%s' % (self.vhost)
+        return 'OPEN: host=%s caps=%#x' % (self.vhost, self.caps)
 VNS_MESSAGES.append(VNSOpen)
 
 class VNSClose(LTMessage):
@@ -111,6 +129,85 @@ class VNSPacket(LTMessage):
         return 'PACKET: %uB on %s' % (len(self.ethernet_frame), self.intf_name)
 VNS_MESSAGES.append(VNSPacket)
 
+class VNSPacketBatch(LTMessage):
+    """A burst of frames in one message. Each entry is the index of an
+    interface, in the order sent in VNSHardwareInfo, and a frame."""
+    @staticmethod
+    def get_type():
+        return 1024
+
+    def __init__(self, entries):
+        LTMessage.__init__(self)
+        self.entries = entries
+
+    ENTRY_FORMAT = '> HH'
+    ENTRY_SIZE = struct.calcsize(ENTRY_FORMAT)
+    MAX_FRAME_SIZE = 0xffff
+
+    def length(self):
+        return sum(VNSPacketBatch.ENTRY_SIZE + len(frame)
+                   for _, frame in self.entries)
+
+    def pack(self):
+        return ''.join(struct.pack(VNSPacketBatch.ENTRY_FORMAT, index, len(frame))
+                       + frame for index, frame in self.entries)
+
+    @staticmethod
+    def unpack(body):
+        entries = []
+        pos = 0
+        while pos + VNSPacketBatch.ENTRY_SIZE <= len(body):
+            index, size = struct.unpack(VNSPacketBatch.ENTRY_FORMAT,
+                body[pos:pos + VNSPacketBatch.ENTRY_SIZE])
+            pos += VNSPacketBatch.ENTRY_SIZE
+            if pos + size > len(body):
+                raise VNSProtocolException('truncated frame in packet batch')
+            entries.append((index, body[pos:pos + size]))
+            pos += size
+        return VNSPacketBatch(entries)
+
+    def __str__(self):
+        return 'PACKET_BATCH: %u frames' % len(self.entries)
+VNS_MESSAGES.append(VNSPacketBatch)
+
+class VNSCapabilities(LTMessage):
+    """The optional features the server agrees to use, in answer to those a
+    client offers in its VNSOpen, and the longest message the server
+    accepts."""
+    CAP_PACKET_BATCH = 1
+    # Messages may be longer than LEGACY_CMD_LEN, up to the length each side
+    # gives; needed for jumbo frames and long batches
+    CAP_LARGE_COMMANDS = 2
+
+    # Longest message a peer that does not negotiate a limit sends
+    LEGACY_CMD_LEN = 10000
+
+    @staticmethod
+    def get_type():
+        return 2048
+
+    def __init__(self, caps, max_cmd_len):
+        LTMessage.__init__(self)
+        self.caps = caps
+        self.max_cmd_len = max_cmd_len
+
+    FORMAT = '> II'
+    SIZE = struct.calcsize(FORMAT)
+
+    def length(self):
+        return VNSCapabilities.SIZE
+
+    def pack(self):
+        return struct.pack(VNSCapabilities.FORMAT, self.caps, self.max_cmd_len)
+
+    @staticmethod
+    def unpack(body):
+        return VNSCapabilities(*struct.unpack(VNSCapabilities.FORMAT, body))
+
+    def __str__(self):
+        return 'CAPABILITIES: caps=%#x max_cmd=%u' % (self.caps, self.max_cmd_len)
+VNS_MESSAGES.append(VNSCapabilities)
+
 class VNSProtocolException(Exception):
     def __init__(self, msg):
         self.msg = msg
@@ -119,11 +216,12 @@ class VNSProtocolException(Exception):
         return self.msg
 
 class VNSInterface:
-    def __init__(self, name, mac, ip, mask):
+    def __init__(self, name, mac, ip, mask, mtu=None):
         self.name = str(name)
         self.mac = str(mac)
         self.ip = str(ip)
         self.mask = str(mask)
+        self.mtu = mtu
 
         if len(mac) != 6:
             raise VNSProtocolException('MAC address must be 6B')
@@ -138,23 +236,37 @@ class VNSInterface:
     HWETHER = 2     # string
     HWETHIP = 4     # uint32
     HWMASK = 8     # uint32
+    HWMTU = 16     # uint32
 
     FORMAT = '> I32s I32s I4s28s I4s28s'
     SIZE = struct.calcsize(FORMAT)
 
+    # Only present if the interface has an MTU configured
+    MTU_FORMAT = '> I I28s'
+    MTU_SIZE = struct.calcsize(MTU_FORMAT)
+
     def length(self):
-        return SIZE
+        if self.mtu is not None:
+            return VNSInterface.SIZE + VNSInterface.MTU_SIZE
+        return VNSInterface.SIZE
 
     def pack(self):
-        return struct.pack(VNSInterface.FORMAT,
+        body = struct.pack(VNSInterface.FORMAT,
                            VNSInterface.HWINTERFACE, self.name,
                            VNSInterface.HWETHER, self.mac,
                            VNSInterface.HWETHIP, self.ip, '',
                            VNSInterface.HWMASK, self.mask, '')
+        if self.mtu is not None:
+            body += struct.pack(VNSInterface.MTU_FORMAT,
+                                VNSInterface.HWMTU, self.mtu, '')
+        return body
 
     def __str__(self):
         fmt = '%s: mac=%s ip=%s mask=%s'
-        return fmt % (self.name, self.mac, inet_ntoa(self.ip), inet_ntoa(self.mask))
+        s = fmt % (self.name, self.mac, inet_ntoa(self.ip), inet_ntoa(self.mask))
+        if self.mtu is not None:
+            s += ' mtu=%u' % self.mtu
+        return s
 
 class VNSSwitchInterface:
     def __init__(self, name):
@@ -164,7 +276,7 @@ class VNSSwitchInterface:
     SIZE = struct.calcsize(FORMAT)
 
     def length(self):
-        return SIZE
+        return VNSSwitchInterface.SIZE
 
     def pack(self):
         return struct.pack(VNSSwitchInterface.FORMAT,
@@ -199,10 +311,12 @@ VNS_MESSAGES.append(VNSHardwareInfo)
 
 VNS_PROTOCOL = LTProtocol(VNS_MESSAGES, 'I', 'I')
 
-def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback, verbose=True):
+def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback, verbose=True, unix_path=None):
     """Starts a server which listens for VNS clients on the specified port.
 
     @param port  the port to listen on
+    @param unix_path  path of a Unix domain socket to listen on as well, for
+                      clients on the same host; None to listen on TCP only
     @param recv_callback  the function to call with received message content
                          (takes two arguments: transport, msg)
     @param new_conn_callback   called with one argument (a LTProtocol) when a connection is started
@@ -213,4 +327,9 @@ def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback
     """
     server = LTTwistedServer(VNS_PROTOCOL, recv_callback, new_conn_callback, lost_conn_callback, verbose)
     server.listen(port)
+    if unix_path is not None:
+        # Remove a socket left behind by an earlier run
+        if os.path.exists(unix_path):
+            os.unlink(unix_path)
+        reactor.listenUNIX(unix_path, server)
     return server
@@ -59,9 +59,10 @@ class VNetOFDevHandler (EventMixin):
           intf_name = intf_name[1]
         if port.name in IP_SETTING.keys():
           swifaces[intf_name] = (IP_SETTING[port.name][0], 
-              IP_SETTING[port.name][1], port.hw_addr.toStr(), port.port_no)
+              IP_SETTING[port.name][1], port.hw_addr.toStr(), port.port_no,
+              IP_SETTING[port.name][2])
         else:
-          swifaces[intf_name] = (None, None, None, port.port_no)
+          swifaces[intf_name] = (None, None, None, port.port_no, None)
 
     # We want to hear OF PacketIn messages, so we listen
     self.listenTo(connection)
@@ -119,8 +120,12 @@ def get_ip_setting():
   for line in f:
     if(len(line.split()) == 0):
       break
-    name, ip, mask = line.split()
-    IP_SETTING[name] = [ip, mask]
+    # An optional fourth column gives the interface's MTU, e.g. 9000 for
+    # jumbo frames
+    fields = line.split()
+    name, ip, mask = fields[:3]
+    mtu = int(fields[3]) if len(fields) > 3 else None
+    IP_SETTING[name] = [ip, mask, mtu]
 
   return 0
 
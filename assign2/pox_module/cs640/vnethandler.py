@@ -23,9 +23,13 @@ from twisted.internet import reactor
 from VNSProtocol import VNS_DEFAULT_PORT, create_vns_server
 from VNSProtocol import VNSOpen, VNSClose, VNSPacket 
 from VNSProtocol import VNSInterface, VNSSwitchInterface, VNSHardwareInfo
+from VNSProtocol import VNSPacketBatch, VNSCapabilities
 
 log = core.getLogger()
 
+# Longest message the server accepts from a device that negotiates it
+MAX_CMD_LEN = 1 << 17
+
 def pack_mac(macaddr):
   octets = macaddr.split(':')
   ret = ''
@@ -46,25 +50,42 @@ class VNetDevice:
     self.conn = None
     self.intfname_to_port = {}
     self.port_to_intfname = {}
+    self.intfname_to_index = {}
+
+    # Longest message the device accepts
+    self.max_cmd_len = VNSCapabilities.LEGACY_CMD_LEN
+    # Longest VNSPacketBatch the device accepts, or 0 if it does not batch
+    self.max_batch_len = 0
+    # Frames waiting to go to the device in the next batch
+    self.pending = []
+    self.pending_lock = threading.Lock()
 
     self.interfaces = []
     for intf in ifaces.keys():
-      ip, mask, mac, port = ifaces[intf]
+      self.intfname_to_index[intf] = len(self.interfaces)
+      ip, mask, mac, port, mtu = ifaces[intf]
       if (ip is None or mask is None or mac is None):
         self.interfaces.append(VNSSwitchInterface(intf))
       else:
         ip = pack_ip(ip)
         mask = pack_ip(mask)
         mac = pack_mac(mac)
-        self.interfaces.append(VNSInterface(intf, mac, ip, mask))
+        self.interfaces.append(VNSInterface(intf, mac, ip, mask, mtu))
       # Mapping between of-port and intf-name
       self.intfname_to_port[intf] = port
       self.port_to_intfname[port] = intf
 
   def handle_packet_msg(self, vns_msg):
-    out_intf = vns_msg.intf_name
-    pkt = vns_msg.ethernet_frame
+    self.handle_frame(vns_msg.intf_name, vns_msg.ethernet_frame)
+
+  def handle_packet_batch_msg(self, vns_msg):
+    for index, pkt in vns_msg.entries:
+      if index >= len(self.interfaces):
+        log.debug('packet-out through unknown interface index %d' % index)
+        continue
+      self.handle_frame(self.interfaces[index].name, pkt)
 
+  def handle_frame(self, out_intf, pkt):
     try:
       out_port = self.intfname_to_port[out_intf]
     except KeyError:
@@ -85,18 +106,64 @@ class VNetDevice:
     if (self.conn is None):
       log.debug("VNet device %s is not connected" % (self.swid))
       return
-    self.conn.send(VNSPacket(intfname, event.pkt))
+    if (self.max_batch_len == 0):
+      self.send_packet(intfname, event.pkt)
+      return
+    # Frames that arrive before the reactor next runs go in one batch.
+    # Frames too long for a batch wait their turn as well, so they never
+    # overtake frames queued before them
+    with self.pending_lock:
+      self.pending.append((intfname, event.pkt))
+      first = (len(self.pending) == 1)
+    if first:
+      reactor.callFromThread(self.send_pending)
+
+  def send_packet(self, intfname, pkt):
+    if VNSPacket.HEADER_SIZE + len(pkt) + 8 > self.max_cmd_len:
+      log.debug("Frame of %u bytes is too long for VNet device %s" %
+          (len(pkt), self.swid))
+      return
+    self.conn.send(VNSPacket(intfname, pkt))
+
+  def send_pending(self):
+    with self.pending_lock:
+      pending = self.pending
+      self.pending = []
+    if (self.conn is None):
+      return
+    # The batch header counts towards the device's limit too
+    limit = self.max_batch_len - 8
+    batch, size = [], 0
+    for intfname, pkt in pending:
+      entry_size = VNSPacketBatch.ENTRY_SIZE + len(pkt)
+      if len(pkt) > VNSPacketBatch.MAX_FRAME_SIZE or entry_size > limit:
+        # Send the frames queued before it first, to keep them in order
+        if batch:
+          self.conn.send(VNSPacketBatch(batch))
+          batch, size = [], 0
+        self.send_packet(intfname, pkt)
+        continue
+      if batch and size + entry_size > limit:
+        self.conn.send(VNSPacketBatch(batch))
+        batch, size = [], 0
+      batch.append((self.intfname_to_index[intfname], pkt))
+      size += entry_size
+    if batch:
+      self.conn.send(VNSPacketBatch(batch))
 
 class VNetServerListener(EventMixin):
   ''' TCP Server to handle connection to VNet '''
-  def __init__ (self, address=('127.0.0.1', 8888)):
+  def __init__ (self, address=('127.0.0.1', 8888), unix_path=None):
     port = address[1]
     self.listenTo(core.VNetOFNetHandler)
     self.devsByConn = {}
     self.devsByName = {}
     self.server = create_vns_server(port, self.recv_msg,
-        self.handle_new_client, self.handle_client_disconnect)
+        self.handle_new_client, self.handle_client_disconnect,
+        unix_path=unix_path)
     log.info("VNet server listening on %s:%d" % (address[0],address[1]))
+    if unix_path is not None:
+      log.info("VNet server listening on %s" % unix_path)
     return
 
   def _handle_VNetPacketIn(self, event):
@@ -119,6 +186,8 @@ class VNetServerListener(EventMixin):
       self.handle_close_msg(conn)
     elif vns_msg.get_type() == VNSPacket.get_type():
       self.handle_packet_msg(conn, vns_msg)
+    elif vns_msg.get_type() == VNSPacketBatch.get_type():
+      self.devsByConn[conn].handle_packet_batch_msg(vns_msg)
     else:
       log.debug('Unexpected VNS message received: %s' % vns_msg)
 
@@ -130,6 +199,18 @@ class VNetServerListener(EventMixin):
     self.devsByConn[conn] = dev
     dev.conn = conn
     conn.send(VNSHardwareInfo(dev.interfaces))
+    # Send long messages and batch frames if the device offered to; it
+    # sends short, single packets until it has our answer
+    caps = vns_msg.caps & (VNSCapabilities.CAP_PACKET_BATCH
+        | VNSCapabilities.CAP_LARGE_COMMANDS)
+    dev.max_cmd_len = VNSCapabilities.LEGACY_CMD_LEN
+    if caps & VNSCapabilities.CAP_LARGE_COMMANDS:
+      dev.max_cmd_len = max(dev.max_cmd_len, vns_msg.max_cmd_len)
+    dev.max_batch_len = 0
+    if caps & VNSCapabilities.CAP_PACKET_BATCH:
+      dev.max_batch_len = vns_msg.max_cmd_len
+    if caps:
+      conn.send(VNSCapabilities(caps, MAX_CMD_LEN))
     return
 
   def handle_close_msg(self, conn):
@@ -142,7 +223,9 @@ class VNetServerListener(EventMixin):
     dev.handle_packet_msg(vns_msg)
 
   def handle_new_client(self, conn):
-    log.debug('Accepted client at %s' % conn.transport.getPeer().host)
+    # Unix domain socket peers have no host
+    peer = conn.transport.getPeer()
+    log.debug('Accepted client at %s' % getattr(peer, 'host', peer))
     return
 
   def handle_client_disconnect(self, conn):
@@ -165,7 +248,7 @@ class VNetPacketOut(Event):
 class VNetHandler(EventMixin):
   _eventMixin_events = set([VNetPacketOut])
 
-  def __init__(self):
+  def __init__(self, unix_path=None):
     EventMixin.__init__(self)
     self.listenTo(core)
     self.listenTo(core.VNetOFNetHandler)
@@ -175,7 +258,7 @@ class VNetHandler(EventMixin):
     self.server_thread = threading.Thread(target=lambda: reactor.run(installSignalHandlers=False))
     self.server_thread.daemon = True
     self.server_thread.start()
-    self.server = VNetServerListener()
+    self.server = VNetServerListener(unix_path=unix_path)
 
   def _handle_VNetDevInfo(self, event):
     log.info("VNetHandler catch VNetDevInfo(ifaces=%s,swid=%s,dpid=%d)", 
@@ -185,8 +268,11 @@ class VNetHandler(EventMixin):
   def _handle_GoingDownEvent (self, event):
     log.debug("Shutting down VNetServer")
 
-def launch():
+def launch(unix=None):
   """
   Starts the VNet handler application.
+
+  --unix=<path> also listens on a Unix domain socket, which devices on the
+  same host can connect to with -u <path>
   """
-  core.registerNew(VNetHandler)
+  core.registerNew(VNetHandler, unix)
@@ -1,9 +1,12 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ParseStatus;
 
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
@@ -25,6 +28,12 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Number of malformed packets dropped, indexed by parse status */
+	private AtomicLongArray dropCounts;
+	
+	/** Threads the device runs for egress queues and timers */
+	protected TaskGroup tasks;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -34,8 +43,11 @@ public abstract class Device
 	{
 		this.host = host;
 		this.logfile = logfile;
-		this.interfaces = new HashMap<String,Iface>();
+		// Interfaces may be added on reconnecting, while packets are handled
+		this.interfaces = new ConcurrentHashMap<String,Iface>();
 		this.vnsComm = null;
+		this.dropCounts = new AtomicLongArray(ParseStatus.values().length);
+		this.tasks = new TaskGroup(host);
 	}
 	
 	/**
@@ -72,14 +84,60 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * @return threads the device runs for egress queues and timers
+	 */
+	public TaskGroup getTasks()
+	{ return this.tasks; }
+	
+	/**
+	 * Stop the device's timers, send whatever its egress queues still hold,
+	 * and close the PCAP dump file for the router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		this.tasks.close();
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
 	
+	/**
+	 * Count a packet dropped because it was malformed.
+	 * @param reason why the packet was dropped
+	 */
+	public void countDrop(ParseStatus reason)
+	{ this.dropCounts.incrementAndGet(reason.ordinal()); }
+	
+	/**
+	 * @param reason a reason for dropping malformed packets
+	 * @return number of packets dropped for the reason
+	 */
+	public long getDropCount(ParseStatus reason)
+	{ return this.dropCounts.get(reason.ordinal()); }
+	
+	/**
+	 * @return number of malformed packets dropped for any reason
+	 */
+	public long getDropCount()
+	{
+		long total = 0;
+		for (int i = 0; i < this.dropCounts.length(); i++)
+		{ total += this.dropCounts.get(i); }
+		return total;
+	}
+	
+	/**
+	 * Compute a hash of the flow a received frame belongs to. In pipelined
+	 * mode, all frames with the same hash are handled by the same worker
+	 * thread, and so in the order they were received. By default frames are
+	 * hashed by their Ethernet addresses.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's flow
+	 */
+	public int getFlowHash(byte[] frame, int offset, int length)
+	{ return FlowHash.ofMacPair(frame, offset, length); }
+	
 	/**
 	 * Add an interface to the device.
 	 * @param ifaceName the name of the interface
@@ -87,6 +145,13 @@ public abstract class Device
 	public Iface addInterface(String ifaceName)
 	{
 		Iface iface = new Iface(ifaceName);
+		if (TaskGroup.MODE != TaskGroup.Mode.INLINE)
+		{
+			EgressQueue queue = new EgressQueue(this, iface, this.tasks,
+					EgressQueue.CAPACITY, EgressQueue.DROP_POLICY);
+			iface.setEgressQueue(queue);
+			this.tasks.start("egress-" + ifaceName, queue);
+		}
 		this.interfaces.put(ifaceName, iface);
 		return iface;
 	}
@@ -108,7 +173,65 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		if (PacketLog.DEBUG)
+		{ PacketLog.sent(etherPacket, iface); }
+		EgressQueue queue = iface.getEgressQueue();
+		if (queue != null)
+		{
+			return queue.offer(etherPacket.hasWireBytes() 
+					? Arrays.copyOfRange(etherPacket.getWireBuffer(),
+						etherPacket.getWireOffset(), etherPacket.getWireOffset()
+						+ etherPacket.getWireLength())
+					: etherPacket.serialize());
+		}
+		return this.vnsComm.sendPacket(etherPacket, iface.getName());
+	}
+	
+	/**
+	 * Send a frame that is already encoded out a specific interface. The
+	 * frame is copied before this returns, so the buffer may be reused.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(byte[] frame, int offset, int length, Iface iface)
+	{
+		if (PacketLog.DEBUG)
+		{ PacketLog.sent(frame, offset, length, iface); }
+		EgressQueue queue = iface.getEgressQueue();
+		if (queue != null)
+		{ return queue.offer(Arrays.copyOfRange(frame, offset, offset + length)); }
+		return this.transmit(frame, offset, length, iface);
+	}
 	
+	/**
+	 * Send a frame to the server now, bypassing the interface's egress 
+	 * queue; called by the queue's thread.
+	 */
+	boolean transmit(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendPacket(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Write whatever has been sent but not yet written to the server.
+	 */
+	boolean flush()
+	{ return this.vnsComm.flush(); }
+	
+	/**
+	 * Handle an Ethernet packet received on a specific interface. The device
+	 * owns the packet and should release it once it no longer needs it, so
+	 * the packet objects and receive buffer can be pooled.
+	 *
+	 * The packet, and its payloads, may refer to a receive buffer that is
+	 * reused for the next frame as soon as this returns, so the packet must
+	 * not be used afterwards. A device that keeps a packet, e.g. while it 
+	 * waits for an ARP reply, must keep a {@link Ethernet#clone() clone},
+	 * which copies whatever it refers to in the receive buffer.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 */
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -7,49 +7,168 @@ import java.io.IOException;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * A capture file, in PCAP format, of the frames a device sends and 
+ * receives.
+ *
+ * Capturing a frame only copies it, with its timestamp, into a ring 
+ * allocated when the file is opened; a thread of the file's own writes the
+ * ring out in as large blocks as have built up, so the threads handling
+ * packets never wait for the disk. When the ring is full, frames are either
+ * dropped or the capturing thread waits for space, and both are counted.
+ * With no ring, each frame is written by the thread that captures it.
+ */
 public class DumpFile
 {
+	/** What to do with a frame captured while the ring is full */
+	public enum OverflowPolicy
+	{
+		/** Leave the frame out of the file */
+		DROP,
+	
+		/** Wait until the writer has made room; slows the device down to
+		 *  the speed of the disk, but captures every frame */
+		BLOCK;
+	
+		/**
+		 * @param name name of a policy, in any case; null for the default
+		 * @param defaultPolicy policy to use if the name is null or unknown
+		 */
+		public static OverflowPolicy parse(String name, 
+				OverflowPolicy defaultPolicy)
+		{
+			if (null == name)
+			{ return defaultPolicy; }
+			try
+			{ return OverflowPolicy.valueOf(name.trim().toUpperCase()); }
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Unknown overflow policy " + name 
+						+ ", using " + defaultPolicy.name().toLowerCase());
+				return defaultPolicy;
+			}
+		}
+	}
+	
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
-	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
 	
+	/** Size of the header before each frame: timestamp and lengths */
+	private static final int RECORD_HEADER_LENGTH = 16;
+	
+	/** Longest part of each frame written, unless another is given; the
+	 *  default, libpcap's largest, keeps jumbo frames whole */
+	public static final int SNAP_LEN = 
+			Integer.getInteger("vnet.pcap.snaplen", 262144);
+	
+	/** Size (in bytes) of the ring captured frames wait in, or 0 to write
+	 *  each frame as it is captured */
+	public static final int BUFFER_SIZE = 
+			Integer.getInteger("vnet.pcap.buffer", 1 << 22);
+	
+	/** What to do with frames captured while the ring is full */
+	public static final OverflowPolicy OVERFLOW = OverflowPolicy.parse(
+			System.getProperty("vnet.pcap.overflow"), OverflowPolicy.DROP);
+	
 	private FileOutputStream fileStream;
 	DataOutputStream outStream;
 	
-	private DumpFile(FileOutputStream fileStream)
-	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
-	}
+	/** Longest part of each frame written; the rest is left out */
+	private final int snapLen;
+	
+	/** Captured frames, each after its record header, waiting to be 
+	 *  written; null if frames are written as they are captured */
+	private final byte[] ring;
+	private final OverflowPolicy overflowPolicy;
+	
+	/** Bytes added to the ring, and bytes written from it, since the file
+	 *  was opened; the bytes in between are waiting to be written */
+	private long added;
+	private long written;
 	
-	private DumpFile()
+	/** Whether the writer is waiting for frames to be added */
+	private boolean writerWaiting;
+	
+	/** Whether the file has been closed; frames captured since are lost */
+	private boolean closed;
+	
+	/** Number of frames captured, dropped because the ring was full, and
+	 *  that had to wait for space in the ring */
+	private long capturedCount;
+	private long dropCount;
+	private long blockCount;
+	
+	/** Thread writing the ring out, if there is a ring */
+	private final Thread writer;
+	
+	private DumpFile(FileOutputStream fileStream, int snapLen, 
+			int bufferSize, OverflowPolicy overflowPolicy)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.fileStream = fileStream;
+		outStream = new DataOutputStream((fileStream != null) ? fileStream 
+				: System.out);
+		this.snapLen = snapLen;
+		this.overflowPolicy = overflowPolicy;
+		if (bufferSize > 0)
+		{
+			this.ring = new byte[bufferSize];
+			this.writer = new Thread(new Runnable() {
+				public void run() { writeRecords(); }
+			}, "DumpFile-writer");
+			this.writer.setDaemon(true);
+		}
+		else
+		{
+			this.ring = null;
+			this.writer = null;
+		}
 	}
 	
 	public static DumpFile open(String filename)
+	{ return open(filename, SNAP_LEN, BUFFER_SIZE, OVERFLOW); }
+	
+	/**
+	 * Open a capture file, writing its header.
+	 * @param filename name of the file, or "-" for standard output
+	 * @param snapLen longest part of each frame to write
+	 * @param bufferSize size (in bytes) of the ring frames wait in to be 
+	 *        written, or 0 to write each frame as it is captured
+	 * @param overflowPolicy what to do with frames captured while the ring
+	 *        is full
+	 * @return the file, or null if it could not be opened
+	 */
+	public static DumpFile open(String filename, int snapLen, int bufferSize,
+			OverflowPolicy overflowPolicy)
 	{
+		snapLen = Math.max(1, snapLen);
 		DumpFile dumpFile = null;
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{ 
+			dumpFile = new DumpFile(null, snapLen, bufferSize, 
+					overflowPolicy); 
+		}
 		else
 		{
 			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
+			{ 
+				dumpFile = new DumpFile(new FileOutputStream(filename), 
+						snapLen, bufferSize, overflowPolicy); 
+			} 
 			catch (FileNotFoundException e) 
 			{
 				System.err.println("Cannot open " + filename);
 				return null;
 			}
 		}
-		
+	
 		if (!dumpFile.writeHeader())
 		{ return null; }
+		if (dumpFile.writer != null)
+		{ dumpFile.writer.start(); }
 		return dumpFile;
 	}
 	
@@ -62,7 +181,7 @@ public class DumpFile
 			this.outStream.writeShort(PCAP_VERSION_MINOR);
 			this.outStream.writeInt(THIS_ZONE);
 			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
+			this.outStream.writeInt(this.snapLen);
 			this.outStream.writeInt(LINKTYPE_ETHERNET);
 			this.outStream.flush();
 			return true;
@@ -72,30 +191,232 @@ public class DumpFile
 			e.printStackTrace();
 			return false;
 		}
-
+	
 	}
 	
 	public void dump(Ethernet etherPacket)
 	{
-		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		// Write an unmodified frame straight from the bytes it was received in
+		if (etherPacket.hasWireBytes())
+		{
+			this.dump(etherPacket.getWireBuffer(), etherPacket.getWireOffset(),
+					etherPacket.getWireLength());
+		}
+		else
+		{
+			byte[] buf = etherPacket.serialize();
+			this.dump(buf, 0, buf.length);
+		}
+	}
+	
+	/**
+	 * Write a frame that is already encoded, cut short at the snapshot 
+	 * length; frames may be written by several threads at once. The frame
+	 * is copied, so the caller may reuse the buffer as soon as this returns.
+	 * @param buf buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] buf, int offset, int length)
+	{
+		long now = System.currentTimeMillis();
+		int sec = (int)(now / 1000);
+		int usec = (int)((now % 1000) * 1000);
+		int captured = Math.min(length, this.snapLen);
+		if (null == this.ring)
+		{
+			this.write(sec, usec, buf, offset, captured, length);
+			return;
+		}
+	
+		int recordLength = RECORD_HEADER_LENGTH + captured;
+		synchronized (this)
+		{
+			if (!this.reserve(recordLength))
+			{
+				this.dropCount++;
+				return;
+			}
+			int pos = (int)(this.added % this.ring.length);
+			pos = this.putInt(pos, sec);
+			pos = this.putInt(pos, usec);
+			pos = this.putInt(pos, captured);
+			pos = this.putInt(pos, length);
+			int first = Math.min(captured, this.ring.length - pos);
+			System.arraycopy(buf, offset, this.ring, pos, first);
+			System.arraycopy(buf, offset + first, this.ring, 0, 
+					captured - first);
+			this.added += recordLength;
+			this.capturedCount++;
+			if (this.writerWaiting)
+			{ this.notifyAll(); }
+		}
+	}
+	
+	/**
+	 * Wait, if the overflow policy allows, until the ring has room for a
+	 * record; called holding the lock.
+	 * @return false if the record should be dropped
+	 */
+	private boolean reserve(int recordLength)
+	{
+		if (this.closed || recordLength > this.ring.length)
+		{ return false; }
+		boolean blocked = false;
+		while (this.ring.length - (this.added - this.written) < recordLength)
+		{
+			if (OverflowPolicy.DROP == this.overflowPolicy || this.closed)
+			{ return false; }
+			if (!blocked)
+			{
+				this.blockCount++;
+				blocked = true;
+			}
+			try
+			{ this.wait(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int putInt(int pos, int value)
+	{
+		for (int shift = 24; shift >= 0; shift -= 8)
+		{
+			this.ring[pos] = (byte)(value >>> shift);
+			pos = (pos + 1 == this.ring.length) ? 0 : pos + 1;
+		}
+		return pos;
+	}
+	
+	/**
+	 * Write one record straight to the file.
+	 */
+	private synchronized void write(int sec, int usec, byte[] buf, 
+			int offset, int captured, int length)
+	{
 		try
 		{
 			this.outStream.writeInt(sec);
 			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(captured);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, offset, captured);
 			this.outStream.flush();
+			this.capturedCount++;
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
 	
+	/**
+	 * Write whatever has been added to the ring, in one or two blocks, 
+	 * until the file is closed and the ring is empty; runs on the writer 
+	 * thread. Records being written cannot be overwritten, since their space
+	 * is not freed until they have been.
+	 */
+	private void writeRecords()
+	{
+		boolean failed = false;
+		while (true)
+		{
+			long start, end;
+			synchronized (this)
+			{
+				while (this.added == this.written && !this.closed)
+				{
+					this.writerWaiting = true;
+					try
+					{ this.wait(); }
+					catch (InterruptedException e)
+					{ /* Only closing stops the writer */ }
+					this.writerWaiting = false;
+				}
+				if (this.added == this.written)
+				{ return; }
+				start = this.written;
+				end = this.added;
+			}
+	
+			if (!failed)
+			{
+				int pos = (int)(start % this.ring.length);
+				int first = (int)Math.min(end - start, this.ring.length - pos);
+				try
+				{
+					this.outStream.write(this.ring, pos, first);
+					this.outStream.write(this.ring, 0, (int)(end - start) - first);
+					this.outStream.flush();
+				}
+				catch (IOException e)
+				{
+					// Keep freeing space, so the device never blocks on it
+					e.printStackTrace();
+					failed = true;
+				}
+			}
+	
+			synchronized (this)
+			{
+				this.written = end;
+				this.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * @return number of frames captured, including any not yet written
+	 */
+	public synchronized long getCapturedCount()
+	{ return this.capturedCount; }
+	
+	/**
+	 * @return number of frames dropped because the ring was full
+	 */
+	public synchronized long getDropCount()
+	{ return this.dropCount; }
+	
+	/**
+	 * @return number of frames that had to wait for space in the ring
+	 */
+	public synchronized long getBlockCount()
+	{ return this.blockCount; }
+	
+	/**
+	 * Write every frame already captured, and close the file; frames 
+	 * captured from now on are dropped.
+	 */
 	public void close()
 	{
+		synchronized (this)
+		{
+			this.closed = true;
+			this.notifyAll();
+		}
+		if (this.writer != null)
+		{
+			boolean interrupted = false;
+			while (this.writer.isAlive())
+			{
+				try
+				{ this.writer.join(); }
+				catch (InterruptedException e)
+				{ interrupted = true; }
+			}
+			if (interrupted)
+			{ Thread.currentThread().interrupt(); }
+		}
+		if (this.getDropCount() > 0)
+		{
+			System.err.println(String.format(
+					"Capture file: %d frames captured, %d dropped",
+					this.getCapturedCount(), this.getDropCount()));
+		}
+	
 		try
 		{
 			this.outStream.flush();
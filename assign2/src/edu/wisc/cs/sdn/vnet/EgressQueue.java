@@ -0,0 +1,208 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Frames waiting to be sent out one interface, and the task that sends
+ * them. Any thread may add frames; the queue's own thread, started in the
+ * device's {@link TaskGroup}, sends them in order and flushes the
+ * connection to the server whenever the queue runs dry.
+ *
+ * The queue is bounded, so a slow connection to the server never blocks
+ * the threads forwarding packets: once it is full, either the frame being
+ * added or the oldest waiting frame is dropped, and counted.
+ *
+ * Devices only have egress queues when their tasks run on threads of their
+ * own ({@code -Dvnet.threads=platform} or {@code virtual}). In the default
+ * {@link TaskGroup.Mode#INLINE inline} mode frames are written on the 
+ * thread that handles each packet, which blocks while the connection to 
+ * the server is slow.
+ *
+ * The sending thread parks rather than blocking interruptibly, since
+ * interrupting a thread while it writes to a channel closes the channel.
+ */
+public class EgressQueue implements Runnable
+{
+	/** What to drop when a frame is added to a full queue */
+	public enum DropPolicy
+	{
+		/** Drop the frame being added */
+		TAIL,
+
+		/** Drop the oldest waiting frame, favouring fresh traffic */
+		HEAD;
+
+		/**
+		 * @param name name of a policy, in any case; null for the default
+		 * @param defaultPolicy policy to use if the name is null or unknown
+		 */
+		public static DropPolicy parse(String name, DropPolicy defaultPolicy)
+		{
+			if (null == name)
+			{ return defaultPolicy; }
+			try
+			{ return DropPolicy.valueOf(name.trim().toUpperCase()); }
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Unknown drop policy " + name + ", using "
+						+ defaultPolicy.name().toLowerCase());
+				return defaultPolicy;
+			}
+		}
+	}
+
+	/** Most frames each queue holds */
+	public static final int CAPACITY =
+			Integer.getInteger("vnet.egress.capacity", 1024);
+
+	/** What queues drop when full */
+	public static final DropPolicy DROP_POLICY = DropPolicy.parse(
+			System.getProperty("vnet.egress.drop"), DropPolicy.TAIL);
+
+	private final Device device;
+	private final Iface iface;
+	private final TaskGroup group;
+
+	/** Frames waiting to be sent; each fills its array exactly */
+	private final Queue<byte[]> frames;
+
+	/** Most frames the queue holds, and what to drop when it is full */
+	private final int capacity;
+	private final DropPolicy dropPolicy;
+
+	/** Number of frames in the queue, kept apart from the queue since
+	 *  counting its elements is slow */
+	private final AtomicInteger depth;
+
+	/** Number of frames sent, and dropped because the queue was full */
+	private final AtomicLong sent;
+	private final AtomicLong dropped;
+
+	/** Thread sending the frames, once it has started */
+	private volatile Thread thread;
+
+	/**
+	 * Creates an empty queue; frames are not sent until it is run.
+	 * @param device the device sending the frames
+	 * @param iface interface on which the frames are sent
+	 * @param group group whose closing stops the queue
+	 * @param capacity most frames the queue holds
+	 * @param dropPolicy what to drop when the queue is full
+	 */
+	public EgressQueue(Device device, Iface iface, TaskGroup group,
+			int capacity, DropPolicy dropPolicy)
+	{
+		this.device = device;
+		this.iface = iface;
+		this.group = group;
+		this.frames = new ConcurrentLinkedQueue<byte[]>();
+		this.capacity = Math.max(1, capacity);
+		this.dropPolicy = dropPolicy;
+		this.depth = new AtomicInteger();
+		this.sent = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.thread = null;
+	}
+
+	/**
+	 * Add a frame to be sent, without blocking. The queue keeps the array,
+	 * so the caller must not modify it again.
+	 * @param frame the frame, filling the array exactly
+	 * @return false if the queue has stopped, or the frame was dropped
+	 *         because the queue was full, otherwise true
+	 */
+	public boolean offer(byte[] frame)
+	{
+		if (this.group.isClosed())
+		{ return false; }
+		if (this.depth.incrementAndGet() > this.capacity)
+		{
+			if (DropPolicy.TAIL == this.dropPolicy)
+			{
+				this.depth.decrementAndGet();
+				this.drop();
+				return false;
+			}
+			
+			// The oldest frame makes way, unless the sending thread has 
+			// taken it already, in which case this frame fits after all
+			if (this.frames.poll() != null)
+			{
+				this.depth.decrementAndGet();
+				this.drop();
+			}
+		}
+		this.frames.offer(frame);
+		LockSupport.unpark(this.thread);
+		return true;
+	}
+
+	private void drop()
+	{
+		this.dropped.incrementAndGet();
+		if (PacketLog.INFO)
+		{ PacketLog.dropped(null, this.iface, "egress-full"); }
+	}
+
+	/**
+	 * @return number of frames waiting to be sent
+	 */
+	public int size()
+	{ return Math.max(0, this.depth.get()); }
+
+	/**
+	 * @return most frames the queue holds
+	 */
+	public int getCapacity()
+	{ return this.capacity; }
+
+	/**
+	 * @return what the queue drops when it is full
+	 */
+	public DropPolicy getDropPolicy()
+	{ return this.dropPolicy; }
+
+	/**
+	 * @return number of frames sent from the queue
+	 */
+	public long getSentCount()
+	{ return this.sent.get(); }
+
+	/**
+	 * @return number of frames dropped because the queue was full
+	 */
+	public long getDropCount()
+	{ return this.dropped.get(); }
+
+	/**
+	 * Send frames as they are added, until the group is closed and every
+	 * frame added before then has been sent.
+	 */
+	public void run()
+	{
+		this.thread = Thread.currentThread();
+		while (true)
+		{
+			byte[] frame;
+			boolean sent = false;
+			while ((frame = this.frames.poll()) != null)
+			{
+				this.depth.decrementAndGet();
+				this.device.transmit(frame, 0, frame.length, this.iface);
+				this.sent.incrementAndGet();
+				sent = true;
+			}
+			if (sent)
+			{ this.device.flush(); }
+			if (this.group.isClosed() && this.frames.isEmpty())
+			{ return; }
+			// A frame added since the last poll leaves a permit, so this
+			// returns at once rather than missing it
+			LockSupport.park(this);
+		}
+	}
+}
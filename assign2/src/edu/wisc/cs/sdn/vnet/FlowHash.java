@@ -0,0 +1,85 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Hashes received frames by the flow they belong to, read straight from the
+ * frame's bytes. Frames of the same flow always hash alike, so they can be
+ * handed to the same worker thread and handled in order.
+ */
+public class FlowHash
+{
+	private static final int ETHER_HEADER_LENGTH = 14;
+	private static final int VLAN_TAG_LENGTH = 4;
+	private static final int TYPE_IPv4 = 0x0800;
+	private static final int TYPE_VLAN = 0x8100;
+	private static final int PROTOCOL_TCP = 6;
+	private static final int PROTOCOL_UDP = 17;
+
+	/**
+	 * Hash a frame by its source and destination MAC addresses.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's addresses
+	 */
+	public static int ofMacPair(byte[] frame, int offset, int length)
+	{
+		if (length < 12)
+		{ return 0; }
+		return mix(getLong(frame, offset, 6), getLong(frame, offset + 6, 6));
+	}
+
+	/**
+	 * Hash a frame by the IPv4 5-tuple (addresses, protocol and TCP or UDP
+	 * ports) of the packet it carries. Fragments are hashed without ports,
+	 * since only the first fragment has them; frames that do not carry IPv4
+	 * are hashed by their MAC addresses.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's flow
+	 */
+	public static int ofIpv4FiveTuple(byte[] frame, int offset, int length)
+	{
+		int ip = offset + ETHER_HEADER_LENGTH;
+		if (length < ETHER_HEADER_LENGTH)
+		{ return ofMacPair(frame, offset, length); }
+		int etherType = (int)getLong(frame, offset + 12, 2);
+		if (TYPE_VLAN == etherType && length >= ETHER_HEADER_LENGTH + VLAN_TAG_LENGTH)
+		{
+			etherType = (int)getLong(frame, offset + 16, 2);
+			ip += VLAN_TAG_LENGTH;
+		}
+		int end = offset + length;
+		if (etherType != TYPE_IPv4 || ip + 20 > end)
+		{ return ofMacPair(frame, offset, length); }
+
+		long addresses = getLong(frame, ip + 12, 8);
+		int protocol = frame[ip + 9] & 0xff;
+		long ports = 0;
+		boolean fragment = (getLong(frame, ip + 6, 2) & 0x3fff) != 0;
+		int transport = ip + (frame[ip] & 0xf) * 4;
+		if (!fragment && (PROTOCOL_TCP == protocol || PROTOCOL_UDP == protocol)
+				&& transport + 4 <= end)
+		{ ports = getLong(frame, transport, 4); }
+		return mix(addresses, (ports << 8) | protocol);
+	}
+
+	private static long getLong(byte[] buf, int offset, int length)
+	{
+		long value = 0;
+		for (int i = 0; i < length; i++)
+		{ value = (value << 8) | (buf[offset + i] & 0xff); }
+		return value;
+	}
+
+	/**
+	 * Combine two values, spreading every input bit across the result.
+	 */
+	private static int mix(long a, long b)
+	{
+		long h = (a * 0x9e3779b97f4a7c15L) ^ (b * 0xc2b2ae3d27d4eb4fL);
+		h ^= (h >>> 31);
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
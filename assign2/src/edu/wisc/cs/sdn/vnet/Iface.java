@@ -9,23 +9,33 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class Iface 
 {
+	/** MTU used until one is configured for the interface */
+	public static final int DEFAULT_MTU = 1500;
+	
 	private String name;
 	private MACAddress macAddress;
 	private int ipAddress;
 	private int subnetMask;
+	private int mtu;
+	private EgressQueue egressQueue;
 	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.mtu = DEFAULT_MTU;
+		this.egressQueue = null;
 	}
 	
 	public String getName()
 	{ return this.name; }
 	
 	public void setMacAddress(MACAddress mac)
-	{ this.macAddress = mac; }
+	{
+		// Intern so frames addressed to this interface share one instance
+		this.macAddress = (null == mac) ? null : mac.intern();
+	}
 	
 	public MACAddress getMacAddress()
 	{ return this.macAddress; }
@@ -41,6 +51,42 @@ public class Iface
 	
 	public int getSubnetMask()
 	{ return this.subnetMask; }
+	
+	public void setMtu(int mtu)
+	{ this.mtu = mtu; }
+	
+	/**
+	 * @return largest IPv4 packet, in bytes, that can be sent out the 
+	 *         interface without fragmentation
+	 */
+	public int getMtu()
+	{ return this.mtu; }
+	
+	public void setEgressQueue(EgressQueue egressQueue)
+	{ this.egressQueue = egressQueue; }
+	
+	/**
+	 * @return queue of frames waiting to be sent out the interface; null if
+	 *         frames are sent on the thread that sends them
+	 */
+	public EgressQueue getEgressQueue()
+	{ return this.egressQueue; }
+	
+	/**
+	 * @return number of frames waiting to be sent out the interface
+	 */
+	public int getEgressDepth()
+	{ return (null == this.egressQueue) ? 0 : this.egressQueue.size(); }
+	
+	/**
+	 * @return number of frames dropped because the interface's egress queue
+	 *         was full
+	 */
+	public long getEgressDropCount()
+	{ 
+		return (null == this.egressQueue) ? 0 
+				: this.egressQueue.getDropCount(); 
+	}
 
 	public String toString()
 	{
@@ -49,10 +95,12 @@ public class Iface
 		{ return this.name; }
 		else
 		{
-			return String.format("%s\tHWaddr %s\n\tinet addr:%s Mask:%s",
-					this.name, this.macAddress.toString(), 
-					IPv4.fromIPv4Address(this.ipAddress),
-					IPv4.fromIPv4Address(this.subnetMask));
+			StringBuilder sb = new StringBuilder(64);
+			sb.append(this.name).append("\tHWaddr ");
+			this.macAddress.appendTo(sb).append("\n\tinet addr:");
+			IPv4.appendIPv4Address(sb, this.ipAddress).append(" Mask:");
+			IPv4.appendIPv4Address(sb, this.subnetMask);
+			return sb.toString();
 		}
 	}
 }
@@ -3,6 +3,7 @@ package edu.wisc.cs.sdn.vnet;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.Pipeline;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
 public class Main 
@@ -14,6 +15,7 @@ public class Main
 	{
 		String host = null;
 		String server = DEFAULT_SERVER;
+		String socketPath = null;
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
@@ -36,6 +38,8 @@ public class Main
 			{ host = args[++i]; }
 			else if (arg.equals("-s"))
 			{ server = args[++i]; }
+			else if (arg.equals("-u"))
+			{ socketPath = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
 			else if (arg.equals("-r"))
@@ -76,11 +80,20 @@ public class Main
 		}
 		
 		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
-				server, port));
 		vnsComm = new VNSComm(dev);
-		if (!vnsComm.connectToServer(port, server))
-		{ System.exit(1); }
+		if (socketPath != null)
+		{
+			System.out.println("Connecting to server " + socketPath);
+			if (!vnsComm.connectToServer(socketPath))
+			{ System.exit(1); }
+		}
+		else
+		{
+			System.out.println(String.format("Connecting to server %s:%d", 
+					server, port));
+			if (!vnsComm.connectToServer(port, server))
+			{ System.exit(1); }
+		}
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
 		if (dev instanceof Router) 
@@ -94,9 +107,20 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
-		// Read messages from the server until the server closes the connection
+		// Read messages from the server until the server closes the session,
+		// reconnecting whenever the connection is lost
 		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
+		if (Pipeline.WORKERS > 0)
+		{
+			// Handle packets on worker threads, while this thread reads
+			Pipeline pipeline = new Pipeline(vnsComm, Pipeline.WORKERS, 
+					Pipeline.CAPACITY, Pipeline.WAIT);
+			pipeline.start();
+			while (vnsComm.readFromServer() || vnsComm.reconnect());
+			pipeline.stop();
+		}
+		else
+		{ while (vnsComm.readFromServer() || vnsComm.reconnect()); }
 		
 		// Shutdown the router
 		dev.destroy();
@@ -105,9 +129,23 @@ public class Main
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
-		System.out.println("VNet -v host [-s server] [-p port] [-h]");
+		System.out.println("VNet -v host [-s server] [-p port] [-u socket_path] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("  -u connects through a Unix domain socket instead of TCP");
+		System.out.println("  packet log: java -Dvnet.log=off|warn|info|debug|trace");
+		System.out.println("              [-Dvnet.log.sample=N] ...");
+		System.out.println("  server connection: java [-Dvnet.vns.flush=usec]");
+		System.out.println("              [-Dvnet.vns.sndbuf=bytes] [-Dvnet.vns.rcvbuf=bytes]");
+		System.out.println("              [-Dvnet.vns.batch=false] [-Dvnet.vns.capabilities=false]");
+		System.out.println("              [-Dvnet.vns.maxcommand=bytes] [-Dvnet.vns.reconnect=false]");
+		System.out.println("              [-Dvnet.vns.reconnect.maxdelay=ms] ...");
+		System.out.println("  capture file: java [-Dvnet.pcap.snaplen=bytes] [-Dvnet.pcap.buffer=bytes]");
+		System.out.println("              [-Dvnet.pcap.overflow=drop|block] ...");
+		System.out.println("  pipelined mode: java -Dvnet.pipeline.workers=N");
+		System.out.println("              [-Dvnet.pipeline.capacity=N] [-Dvnet.pipeline.wait=spin|yield|park] ...");
+		System.out.println("  egress queues and timers: java -Dvnet.threads=inline|platform|virtual");
+		System.out.println("              [-Dvnet.egress.capacity=N] [-Dvnet.egress.drop=tail|head] ...");
 	}
 }
@@ -0,0 +1,428 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Leveled, structured log of packet events.
+ *
+ * The level is fixed when the class is loaded, from the system property
+ * {@code vnet.log} (off, warn, info, debug or trace; default off). Callers
+ * guard each event with one of the static final flags, e.g.
+ * <pre>
+ * if (PacketLog.DEBUG)
+ * { PacketLog.received(etherPacket, inIface); }
+ * </pre>
+ * so a disabled event costs nothing: the JIT removes the branch, and no
+ * strings are built. An enabled event copies a few header fields into a
+ * preallocated slot of a ring buffer; a background thread formats and
+ * writes the slots to standard error. If the ring is full the event is
+ * counted and dropped rather than stalling the packet path.
+ *
+ * With {@code vnet.log.sample=N} only about one in N received and sent
+ * packets is logged; drops and messages are always logged. At the trace
+ * level each logged event also keeps a copy of the frame, which the
+ * background thread decodes and prints in full.
+ */
+public class PacketLog
+{
+	/** Log levels */
+	public static final int LEVEL_OFF = 0;
+	public static final int LEVEL_WARN = 1;
+	public static final int LEVEL_INFO = 2;
+	public static final int LEVEL_DEBUG = 3;
+	public static final int LEVEL_TRACE = 4;
+
+	/** Level at which events are logged */
+	public static final int LEVEL = parseLevel(System.getProperty("vnet.log"));
+
+	/** Whether events of each level are logged */
+	public static final boolean WARN = (LEVEL >= LEVEL_WARN);
+	public static final boolean INFO = (LEVEL >= LEVEL_INFO);
+	public static final boolean DEBUG = (LEVEL >= LEVEL_DEBUG);
+	public static final boolean TRACE = (LEVEL >= LEVEL_TRACE);
+
+	/** Log about one in this many received and sent packets */
+	public static final int SAMPLE = Math.max(1,
+			Integer.getInteger("vnet.log.sample", 1));
+
+	/** Number of events the ring buffer holds; a power of two */
+	private static final int CAPACITY = 1 << 12;
+
+	/** Bytes of each frame kept for events at the trace level */
+	private static final int SNAP_LEN = 1518;
+
+	/** Kinds of events */
+	private static final byte EVENT_RECEIVED = 0;
+	private static final byte EVENT_SENT = 1;
+	private static final byte EVENT_DROPPED = 2;
+	private static final byte EVENT_MESSAGE = 3;
+
+	private static final String[] EVENT_NAMES =
+			{ "rx", "tx", "drop", "msg" };
+
+	/** Events, indexed by sequence number modulo the capacity */
+	private static final Slot[] ring;
+
+	/** Sequence number of the next event to be claimed by a producer */
+	private static final AtomicLong head = new AtomicLong();
+
+	/** Sequence number of the next event to be written */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** Number of events dropped because the ring was full */
+	private static final AtomicLong overflows = new AtomicLong();
+
+	static
+	{
+		if (LEVEL > LEVEL_OFF)
+		{
+			ring = new Slot[CAPACITY];
+			for (int i = 0; i < CAPACITY; i++)
+			{ ring[i] = new Slot(); }
+			Thread writer = new Thread(new Runnable() {
+				public void run() { drain(); }
+			}, "PacketLog");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { flush(); }
+			});
+		}
+		else
+		{ ring = null; }
+	}
+
+	/**
+	 * Log a packet received by the device, at the debug level.
+	 * @param etherPacket the packet that was received
+	 * @param iface the interface on which the packet was received
+	 */
+	public static void received(Ethernet etherPacket, Iface iface)
+	{
+		if (DEBUG && sampled())
+		{ publish(EVENT_RECEIVED, etherPacket, iface, null); }
+	}
+
+	/**
+	 * Log a packet sent by the device, at the debug level.
+	 * @param etherPacket the packet that was sent
+	 * @param iface the interface on which the packet was sent
+	 */
+	public static void sent(Ethernet etherPacket, Iface iface)
+	{
+		if (DEBUG && sampled())
+		{ publish(EVENT_SENT, etherPacket, iface, null); }
+	}
+
+	/**
+	 * Log a frame, already encoded, sent by the device, at the debug level.
+	 * @param frame buffer holding the frame that was sent
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface the interface on which the frame was sent
+	 */
+	public static void sent(byte[] frame, int offset, int length, Iface iface)
+	{
+		if (DEBUG && sampled())
+		{
+			long seq = claim();
+			if (seq < 0)
+			{ return; }
+			Slot slot = ring[(int)seq & (CAPACITY - 1)];
+			slot.fill(EVENT_SENT, iface, null);
+			slot.capture(frame, offset, length);
+			slot.published = seq + 1;
+		}
+	}
+
+	/**
+	 * Log a packet dropped by the device, at the info level.
+	 * @param etherPacket the packet that was dropped
+	 * @param iface the interface on which the packet was received
+	 * @param reason a constant string describing why the packet was dropped
+	 */
+	public static void dropped(Ethernet etherPacket, Iface iface,
+			String reason)
+	{
+		if (INFO)
+		{ publish(EVENT_DROPPED, etherPacket, iface, reason); }
+	}
+
+	/**
+	 * Log a message, at the warn level.
+	 * @param message the message
+	 */
+	public static void warn(String message)
+	{
+		if (WARN)
+		{ publish(EVENT_MESSAGE, null, null, message); }
+	}
+
+	/**
+	 * @return number of events dropped because the ring buffer was full
+	 */
+	public static long getOverflows()
+	{ return overflows.get(); }
+
+	private static boolean sampled()
+	{ return (1 == SAMPLE) || (0 == ThreadLocalRandom.current().nextInt(SAMPLE)); }
+
+	/**
+	 * Claim a slot in the ring, fill it in, and make it visible to the
+	 * writer thread.
+	 */
+	private static void publish(byte event, Ethernet etherPacket, Iface iface,
+			String text)
+	{
+		long seq = claim();
+		if (seq < 0)
+		{ return; }
+		Slot slot = ring[(int)seq & (CAPACITY - 1)];
+		slot.fill(event, iface, text);
+		slot.capture(etherPacket);
+		slot.published = seq + 1;
+	}
+
+	/**
+	 * Claim the next slot in the ring.
+	 * @return sequence number of the slot, or -1 if the ring is full
+	 */
+	private static long claim()
+	{
+		long seq;
+		do
+		{
+			seq = head.get();
+			if (seq - tail.get() >= CAPACITY)
+			{
+				overflows.incrementAndGet();
+				return -1;
+			}
+		}
+		while (!head.compareAndSet(seq, seq + 1));
+		return seq;
+	}
+
+	/**
+	 * Write events as they are published; runs on the writer thread.
+	 */
+	private static void drain()
+	{
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.err));
+		StringBuilder sb = new StringBuilder(256);
+		while (true)
+		{
+			long seq = tail.get();
+			Slot slot = ring[(int)seq & (CAPACITY - 1)];
+			if (slot.published != seq + 1)
+			{
+				// Flush whatever has been written when the ring goes idle
+				try { out.flush(); } catch (IOException e) { }
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+
+			sb.setLength(0);
+			slot.format(sb);
+			tail.lazySet(seq + 1);
+			try
+			{ out.append(sb).append('\n'); }
+			catch (IOException e)
+			{ }
+		}
+	}
+
+	/**
+	 * Wait briefly for the writer thread to catch up, e.g. at exit.
+	 */
+	private static void flush()
+	{
+		long deadline = System.currentTimeMillis() + 1000;
+		while (tail.get() < head.get()
+				&& System.currentTimeMillis() < deadline)
+		{ LockSupport.parkNanos(1000000); }
+		LockSupport.parkNanos(2000000);
+	}
+
+	private static int parseLevel(String level)
+	{
+		if (null == level)
+		{ return LEVEL_OFF; }
+		switch (level.toLowerCase())
+		{
+		case "warn": return LEVEL_WARN;
+		case "info": return LEVEL_INFO;
+		case "debug": return LEVEL_DEBUG;
+		case "trace": return LEVEL_TRACE;
+		default: return LEVEL_OFF;
+		}
+	}
+
+	/**
+	 * An event in the ring buffer; header fields are copied out of the
+	 * packet since the packet may be released or reused once logged.
+	 */
+	private static class Slot
+	{
+		/** Sequence number of the event in the slot, plus one, once it is
+		 *  ready to be written */
+		volatile long published;
+
+		byte event;
+		long time;
+		Iface iface;
+		String text;
+		int frameLength;
+		long sourceMac;
+		long destinationMac;
+		short etherType;
+		int sourceIp;
+		int destinationIp;
+		byte protocol;
+		byte ttl;
+
+		/** Copy of the frame, at the trace level */
+		byte[] frame;
+
+		Slot()
+		{ this.frame = TRACE ? new byte[SNAP_LEN] : null; }
+
+		void fill(byte event, Iface iface, String text)
+		{
+			this.event = event;
+			this.time = System.currentTimeMillis();
+			this.iface = iface;
+			this.text = text;
+		}
+
+		void capture(Ethernet etherPacket)
+		{
+			this.frameLength = -1;
+			if (null == etherPacket)
+			{ return; }
+			this.sourceMac = toLong(etherPacket.getSourceMAC());
+			this.destinationMac = toLong(etherPacket.getDestinationMAC());
+			this.etherType = etherPacket.getEtherType();
+			this.clearIp();
+			IPacket payload = etherPacket.getPayload();
+			if (payload instanceof IPv4)
+			{
+				IPv4 ipPacket = (IPv4)payload;
+				this.sourceIp = ipPacket.getSourceAddress();
+				this.destinationIp = ipPacket.getDestinationAddress();
+				this.protocol = ipPacket.getProtocol();
+				this.ttl = ipPacket.getTtl();
+			}
+			this.frameLength = 0;
+			if (TRACE)
+			{
+				byte[] data = etherPacket.serialize();
+				this.frameLength = data.length;
+				System.arraycopy(data, 0, this.frame, 0,
+						Math.min(data.length, SNAP_LEN));
+			}
+		}
+
+		private void clearIp()
+		{
+			this.sourceIp = 0;
+			this.destinationIp = 0;
+			this.protocol = 0;
+			this.ttl = 0;
+		}
+
+		void capture(byte[] data, int offset, int length)
+		{
+			this.frameLength = -1;
+			if (length < 14)
+			{ return; }
+			this.destinationMac = MACAddress.read(data, offset);
+			this.sourceMac = MACAddress.read(data, offset + 6);
+			this.etherType = (short)(((data[offset + 12] & 0xff) << 8)
+					| (data[offset + 13] & 0xff));
+			// A truncated IPv4 frame must not show the previous entry's fields
+			this.clearIp();
+			if (Ethernet.TYPE_IPv4 == this.etherType && length >= 34)
+			{
+				this.ttl = data[offset + 22];
+				this.protocol = data[offset + 23];
+				this.sourceIp = readInt(data, offset + 26);
+				this.destinationIp = readInt(data, offset + 30);
+			}
+			this.frameLength = 0;
+			if (TRACE)
+			{
+				this.frameLength = length;
+				System.arraycopy(data, offset, this.frame, 0,
+						Math.min(length, SNAP_LEN));
+			}
+		}
+
+		private static long toLong(MACAddress mac)
+		{ return (null == mac) ? 0 : mac.toLong(); }
+
+		private static int readInt(byte[] data, int offset)
+		{
+			return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+					| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		}
+
+		void format(StringBuilder sb)
+		{
+			sb.append(this.time / 1000).append('.');
+			long millis = this.time % 1000;
+			if (millis < 100) { sb.append('0'); }
+			if (millis < 10) { sb.append('0'); }
+			sb.append(millis).append(' ').append(EVENT_NAMES[this.event]);
+			if (this.iface != null)
+			{ sb.append(" iface=").append(this.iface.getName()); }
+			if (this.text != null)
+			{
+				sb.append(EVENT_MESSAGE == this.event ? " " : " reason=");
+				sb.append(this.text);
+			}
+			if (this.frameLength < 0)
+			{ return; }
+
+			sb.append(" src=");
+			MACAddress.valueOf(this.sourceMac).appendTo(sb);
+			sb.append(" dst=");
+			MACAddress.valueOf(this.destinationMac).appendTo(sb);
+			sb.append(" type=0x").append(
+					Integer.toHexString(this.etherType & 0xffff));
+			if (Ethernet.TYPE_IPv4 == this.etherType)
+			{
+				sb.append(" ip.src=");
+				IPv4.appendIPv4Address(sb, this.sourceIp);
+				sb.append(" ip.dst=");
+				IPv4.appendIPv4Address(sb, this.destinationIp);
+				sb.append(" ip.proto=").append(this.protocol & 0xff);
+				sb.append(" ip.ttl=").append(this.ttl & 0xff);
+			}
+			if (TRACE && this.frameLength > 0)
+			{
+				int length = Math.min(this.frameLength, SNAP_LEN);
+				sb.append(" len=").append(this.frameLength);
+				try
+				{
+					Ethernet frame = new Ethernet();
+					frame.deserialize(this.frame, 0, length);
+					sb.append(frame.toString().replace("\n", "\n\t"));
+				}
+				catch (RuntimeException e)
+				{ sb.append(" (undecodable)"); }
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue for exactly one producer thread and one
+ * consumer thread. Each side publishes its position with an ordered write
+ * and keeps a cached copy of the other side's position, so in the common
+ * case an offer or poll touches no memory the other thread is writing.
+ * @param <E> type of the elements
+ */
+public class SpscRing<E>
+{
+	private final Object[] elements;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+
+	/** Sequence number of the next element to poll; written by the consumer */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Sequence number of the next element to offer; written by the producer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The producer's last view of head */
+	private long cachedHead;
+
+	/** The consumer's last view of tail */
+	private long cachedTail;
+
+	/**
+	 * Creates a ring.
+	 * @param capacity most elements the ring holds; rounded up to a power
+	 *        of two
+	 * @param waitStrategy how {@link #put} waits for room
+	 */
+	public SpscRing(int capacity, WaitStrategy waitStrategy)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.elements = new Object[size];
+		this.mask = size - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Add an element, if there is room; called only by the producer.
+	 * @param element the element to add, not null
+	 * @return false if the ring is full, otherwise true
+	 */
+	public boolean offer(E element)
+	{
+		long seq = this.tail.get();
+		if (seq - this.cachedHead >= this.elements.length)
+		{
+			this.cachedHead = this.head.get();
+			if (seq - this.cachedHead >= this.elements.length)
+			{ return false; }
+		}
+		this.elements[(int)seq & this.mask] = element;
+		this.tail.lazySet(seq + 1);
+		return true;
+	}
+
+	/**
+	 * Add an element, waiting for room if the ring is full; called only by
+	 * the producer.
+	 * @param element the element to add, not null
+	 */
+	public void put(E element)
+	{
+		for (int tries = 0; !this.offer(element); tries++)
+		{ this.waitStrategy.idle(tries); }
+	}
+
+	/**
+	 * Remove the oldest element, if there is one; called only by the
+	 * consumer.
+	 * @return the element, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll()
+	{
+		long seq = this.head.get();
+		if (seq >= this.cachedTail)
+		{
+			this.cachedTail = this.tail.get();
+			if (seq >= this.cachedTail)
+			{ return null; }
+		}
+		int index = (int)seq & this.mask;
+		E element = (E)this.elements[index];
+		this.elements[index] = null;
+		this.head.lazySet(seq + 1);
+		return element;
+	}
+
+	/**
+	 * @return true if the ring holds no elements
+	 */
+	public boolean isEmpty()
+	{ return this.head.get() >= this.tail.get(); }
+
+	/**
+	 * @return the number of elements the ring holds
+	 */
+	public int capacity()
+	{ return this.elements.length; }
+}
@@ -0,0 +1,239 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The threads a device runs besides the one that reads from the server:
+ * egress queues, and periodic tasks such as aging out learned addresses.
+ * Every thread belongs to the group that started it, and {@link #close()}
+ * stops them all and waits for them to finish, so none outlives its device.
+ *
+ * On Java 21 or later the threads may be virtual threads, which cost little
+ * enough that every queue and timer can block on a thread of its own. They
+ * are found reflectively, so the code still compiles and runs, on platform
+ * threads, with older JDKs.
+ */
+public class TaskGroup
+{
+	/** Kinds of threads a group can run tasks on */
+	public enum Mode
+	{
+		/** Send on the thread that handles each packet; timers still run
+		 *  on platform threads */
+		INLINE,
+
+		/** One platform thread per egress queue and timer */
+		PLATFORM,
+
+		/** One virtual thread per egress queue and timer, where supported */
+		VIRTUAL;
+
+		/**
+		 * @param name name of a mode, in any case; null for the default
+		 * @param defaultMode mode to use if the name is null or unknown
+		 */
+		public static Mode parse(String name, Mode defaultMode)
+		{
+			if (null == name)
+			{ return defaultMode; }
+			try
+			{ return Mode.valueOf(name.trim().toUpperCase()); }
+			catch (IllegalArgumentException e)
+			{
+				System.err.println("Unknown thread mode " + name + ", using "
+						+ defaultMode.name().toLowerCase());
+				return defaultMode;
+			}
+		}
+	}
+
+	/** How devices run their tasks */
+	public static final Mode MODE = Mode.parse(
+			System.getProperty("vnet.threads"), Mode.INLINE);
+
+	/** Thread.ofVirtual() and the builder methods used with it; null if
+	 *  virtual threads are not available */
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+	static
+	{
+		Method ofVirtual = null, name = null, unstarted = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			// Fails if virtual threads are a preview feature not enabled
+			ofVirtual.invoke(null);
+		}
+		catch (Exception e)
+		{ ofVirtual = null; }
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+		if (Mode.VIRTUAL == MODE && null == OF_VIRTUAL)
+		{
+			System.err.println("Warning: virtual threads are not supported by"
+					+ " this JVM, using platform threads");
+		}
+	}
+
+	/** Prefix for the names of the group's threads */
+	private final String name;
+
+	/** Whether to run tasks on virtual threads */
+	private final boolean virtual;
+
+	/** Threads started by the group */
+	private final List<Thread> threads;
+
+	/** Whether the group has been closed */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a group whose threads are of the kind given by {@link #MODE}.
+	 * @param name prefix for the names of the group's threads
+	 */
+	public TaskGroup(String name)
+	{ this(name, Mode.VIRTUAL == MODE); }
+
+	/**
+	 * Creates a group.
+	 * @param name prefix for the names of the group's threads
+	 * @param virtual true to run tasks on virtual threads, if supported
+	 */
+	public TaskGroup(String name, boolean virtual)
+	{
+		this.name = name;
+		this.virtual = virtual && isVirtualSupported();
+		this.threads = new ArrayList<Thread>();
+		this.closed = false;
+	}
+
+	/**
+	 * @return true if this JVM can run virtual threads
+	 */
+	public static boolean isVirtualSupported()
+	{ return OF_VIRTUAL != null; }
+
+	/**
+	 * @return true if the group runs its tasks on virtual threads
+	 */
+	public boolean isVirtual()
+	{ return this.virtual; }
+
+	/**
+	 * @return true once the group has been closed; long-running tasks should
+	 *         wait by parking, and return once this is true
+	 */
+	public boolean isClosed()
+	{ return this.closed; }
+
+	/**
+	 * Run a task on a thread of its own.
+	 * @param taskName name of the task, appended to the group's name
+	 * @param task the task
+	 * @return the thread running the task, or null if the group is closed
+	 */
+	public Thread start(String taskName, Runnable task)
+	{
+		Thread thread = this.newThread(this.name + "-" + taskName, task);
+		synchronized (this.threads)
+		{
+			if (this.closed)
+			{ return null; }
+			this.threads.add(thread);
+		}
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Run a task repeatedly, on a thread of its own, until the group is
+	 * closed. An exception thrown by the task is reported and does not stop
+	 * later runs.
+	 * @param taskName name of the task, appended to the group's name
+	 * @param period time (in milliseconds) between runs
+	 * @param task the task
+	 * @return the thread running the task, or null if the group is closed
+	 */
+	public Thread schedule(String taskName, final long period,
+			final Runnable task)
+	{
+		return this.start(taskName, new Runnable() {
+			public void run()
+			{
+				while (true)
+				{
+					long deadline = System.nanoTime() + period * 1000000;
+					long remaining;
+					while (!closed 
+							&& (remaining = deadline - System.nanoTime()) > 0)
+					{ LockSupport.parkNanos(this, remaining); }
+					if (closed)
+					{ return; }
+					try
+					{ task.run(); }
+					catch (RuntimeException e)
+					{ e.printStackTrace(); }
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop every task in the group, and wait for their threads to finish.
+	 * Tasks are unparked rather than interrupted, since interrupting a 
+	 * thread while it writes to a channel closes the channel; a queue 
+	 * waiting for work wakes up and sends whatever it still holds before
+	 * returning.
+	 */
+	public void close()
+	{
+		List<Thread> started;
+		synchronized (this.threads)
+		{
+			this.closed = true;
+			started = new ArrayList<Thread>(this.threads);
+			this.threads.clear();
+		}
+		for (Thread thread : started)
+		{ LockSupport.unpark(thread); }
+		boolean interrupted = false;
+		for (Thread thread : started)
+		{
+			while (thread.isAlive())
+			{
+				try
+				{ thread.join(); }
+				catch (InterruptedException e)
+				{ interrupted = true; }
+			}
+		}
+		if (interrupted)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private Thread newThread(String threadName, Runnable task)
+	{
+		if (this.virtual)
+		{
+			try
+			{
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, threadName);
+				return (Thread)BUILDER_UNSTARTED.invoke(builder, task);
+			}
+			catch (Exception e)
+			{ /* Fall back to a platform thread */ }
+		}
+		Thread thread = new Thread(task, threadName);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
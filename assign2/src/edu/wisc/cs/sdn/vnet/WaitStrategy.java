@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for work that is not yet available, e.g. for an empty
+ * {@link SpscRing} to receive an element. Every strategy spins briefly
+ * first, since work usually arrives within a few hundred nanoseconds when
+ * packets are flowing.
+ */
+public enum WaitStrategy
+{
+	/** Spin; lowest latency, but keeps a core busy */
+	SPIN,
+
+	/** Yield the processor to other threads between checks */
+	YIELD,
+
+	/** Sleep briefly between checks; highest latency, least CPU */
+	PARK;
+
+	/** Number of checks before a strategy other than spinning applies */
+	private static final int SPIN_TRIES = 100;
+
+	/** Time (in nanoseconds) a parked thread sleeps between checks */
+	private static final long PARK_NANOS = 50000;
+
+	/**
+	 * Wait before checking for work again.
+	 * @param tries number of checks since work was last found
+	 */
+	public void idle(int tries)
+	{
+		if (this == SPIN || tries < SPIN_TRIES)
+		{ Thread.onSpinWait(); }
+		else if (this == YIELD)
+		{ Thread.yield(); }
+		else
+		{ LockSupport.parkNanos(PARK_NANOS); }
+	}
+
+	/**
+	 * Find a strategy by name, ignoring case.
+	 * @param name spin, yield or park
+	 * @param defaultStrategy strategy to use if the name is null or unknown
+	 * @return the strategy
+	 */
+	public static WaitStrategy parse(String name, WaitStrategy defaultStrategy)
+	{
+		if (null == name)
+		{ return defaultStrategy; }
+		switch (name.toLowerCase())
+		{
+		case "spin": return SPIN;
+		case "yield": return YIELD;
+		case "park": return PARK;
+		default: return defaultStrategy;
+		}
+	}
+}
@@ -4,10 +4,10 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
@@ -18,14 +18,31 @@ import net.floodlightcontroller.packet.MACAddress;
  */
 public class ArpCache
 {
+	/** Number of requests sent for an address before it is unreachable */
+	public static final int MAX_REQUESTS = 3;
+	
+	/** Time (in milliseconds) between requests for an address */
+	public static final long REQUEST_INTERVAL = 1000;
+	
+	/** Outcomes of resolving an address that is not in the cache */
+	public static final int RESOLVE_SEND = 0;
+	public static final int RESOLVE_WAIT = 1;
+	public static final int RESOLVE_FAILED = 2;
+	
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 	
+	/** Addresses being resolved; maps an IP address to its requests */
+	private Map<Integer,Requests> pending;
+	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.entries = new ConcurrentHashMap<Integer,ArpEntry>();
+		this.pending = new HashMap<Integer,Requests>();
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -36,6 +53,74 @@ public class ArpCache
 	public void insert(MACAddress mac, int ip)
 	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
 	
+	/**
+	 * Record a mapping learned from an ARP packet, and stop resolving the IP
+	 * address. Nothing is allocated if the mapping is already in the cache.
+	 * @param mac MAC address, in the lower 48 bits of a long
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public void update(long mac, int ip)
+	{
+		synchronized (this.pending)
+		{ this.pending.remove(ip); }
+		ArpEntry entry = this.entries.get(ip);
+		if (entry != null && entry.getMac().toLong() == mac)
+		{ return; }
+		this.insert(MACAddress.valueOf(mac), ip);
+	}
+	
+	/**
+	 * Decide whether to send an ARP request for an IP address that is not
+	 * in the cache. Requests are sent at most once per interval, and the
+	 * address is unreachable once enough requests have gone unanswered.
+	 * @param ip IP address whose MAC address is desired
+	 * @param now current time (in milliseconds)
+	 * @return RESOLVE_SEND if a request should be sent now, RESOLVE_WAIT if
+	 *         a request was sent recently, or RESOLVE_FAILED if the address
+	 *         did not answer
+	 */
+	public int resolve(int ip, long now)
+	{
+		synchronized (this.pending)
+		{
+			Requests requests = this.pending.get(ip);
+			if (null == requests)
+			{
+				this.pending.put(ip, new Requests(now));
+				return RESOLVE_SEND;
+			}
+			if (now - requests.lastSent < REQUEST_INTERVAL)
+			{ return RESOLVE_WAIT; }
+			if (requests.sent >= MAX_REQUESTS)
+			{
+				this.pending.remove(ip);
+				return RESOLVE_FAILED;
+			}
+			requests.sent++;
+			requests.lastSent = now;
+			return RESOLVE_SEND;
+		}
+	}
+	
+	/**
+	 * Stop resolving addresses that have not been asked for since their
+	 * last request went unanswered, so addresses no longer in use do not
+	 * accumulate.
+	 * @param now current time (in milliseconds)
+	 */
+	public void expire(long now)
+	{
+		synchronized (this.pending)
+		{
+			Iterator<Requests> it = this.pending.values().iterator();
+			while (it.hasNext())
+			{
+				if (now - it.next().lastSent > MAX_REQUESTS * REQUEST_INTERVAL)
+				{ it.remove(); }
+			}
+		}
+	}
+	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
 	 * @param ip IP address whose MAC address is desired
@@ -83,42 +168,38 @@ public class ArpCache
 			{ break; }
 			
 			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format(
-					"%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
+			int[] bounds = new int[4];
+			// MAC addresses must have two digits per byte, hence 17 chars
+			if (RouteTable.splitFields(line, bounds) != 2
+					|| bounds[3] - bounds[2] != 17)
 			{
 				System.err.println("Invalid entry in ARP cache file");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 
-			int ip = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == ip)
+			long ip = RouteTable.parseIp(line, bounds[0], bounds[1]);
+			if (ip <= 0)
 			{
 				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
+						+ line.substring(bounds[0], bounds[1]) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 			
 			MACAddress mac = null;
 			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
+			{ mac = MACAddress.valueOf(line, bounds[2], bounds[3]); }
 			catch(IllegalArgumentException iae)
 			{
 				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
+						+ line.substring(bounds[2], bounds[3]) + " to valid MAC");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 			
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insert(mac, (int)ip);
 		}
 	
 		// Close the file
@@ -126,13 +207,26 @@ public class ArpCache
 		return true;
 	}
 	
-	public String toString()
+	/**
+	 * Requests sent for an address being resolved.
+	 */
+	private static class Requests
 	{
-		String result = "IP\t\tMAC\n";
-		for (ArpEntry entry : this.entries.values())
+		int sent;
+		long lastSent;
+		
+		Requests(long now)
 		{
-			result += entry.toString()+"\n";
+			this.sent = 1;
+			this.lastSent = now;
 		}
-		return result;
+	}
+	
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+		for (ArpEntry entry : this.entries.values())
+		{ entry.appendTo(result).append('\n'); }
+		return result.toString();
 	}
 }
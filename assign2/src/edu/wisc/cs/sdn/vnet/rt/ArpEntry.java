@@ -49,8 +49,16 @@ public class ArpEntry
 	{ return this.timeAdded; }
 	
 	public String toString()
+	{ return this.appendTo(new StringBuilder(40)).toString(); }
+
+	/**
+	 * Append a description of the entry, as returned by toString.
+	 * @param sb the builder to append to
+	 * @return the builder
+	 */
+	public StringBuilder appendTo(StringBuilder sb)
 	{
-		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
-				this.mac.toString());
+		IPv4.appendIPv4Address(sb, this.ip).append(" \t");
+		return this.mac.appendTo(sb);
 	}
 }
@@ -0,0 +1,231 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Writes the ARP requests and replies a router sends, and reads received
+ * ARP packets, directly as bytes rather than through {@link ARP} objects.
+ *
+ * Received packets are read in place with the static accessors, which take
+ * the buffer and offset of an Ethernet/IPv4 ARP packet. Outgoing packets are
+ * copied from a template prebuilt for each interface, holding everything
+ * but the target's addresses, into a buffer reused by each thread.
+ */
+public class ArpResponder
+{
+	/** Length of an ARP packet for IPv4 over Ethernet */
+	public static final int ARP_LENGTH = 28;
+
+	/** Length of an ARP frame */
+	public static final int FRAME_LENGTH = 14 + ARP_LENGTH;
+
+	/** Offsets of fields within an ARP packet */
+	private static final int OPCODE = 6;
+	private static final int SENDER_MAC = 8;
+	private static final int SENDER_IP = 14;
+	private static final int TARGET_MAC = 18;
+	private static final int TARGET_IP = 24;
+
+	/** Buffer each thread writes ARP frames into */
+	private static final ThreadLocal<byte[]> buffers =
+			new ThreadLocal<byte[]>() {
+				protected byte[] initialValue()
+				{ return new byte[FRAME_LENGTH]; }
+			};
+
+	/** Templates for each interface; replaced, never modified, when an
+	 *  interface is added or its addresses change */
+	private volatile Template[] templates = new Template[0];
+
+	/**
+	 * @return a buffer, reused by the calling thread, that is large enough
+	 *         for an ARP frame
+	 */
+	public static byte[] getBuffer()
+	{ return buffers.get(); }
+
+	/**
+	 * Determine whether a packet maps IPv4 addresses to Ethernet addresses.
+	 * @param arp buffer holding the ARP packet
+	 * @param offset offset of the ARP packet in the buffer
+	 * @param length length of the ARP packet
+	 * @return true if the packet is an Ethernet/IPv4 ARP packet
+	 */
+	public static boolean isEthernetIpv4(byte[] arp, int offset, int length)
+	{
+		return (length >= ARP_LENGTH)
+				&& (getShort(arp, offset) == ARP.HW_TYPE_ETHERNET)
+				&& (getShort(arp, offset + 2) == ARP.PROTO_TYPE_IP)
+				&& (arp[offset + 4] == 6) && (arp[offset + 5] == 4);
+	}
+
+	/**
+	 * @return the opcode of an Ethernet/IPv4 ARP packet in a buffer
+	 */
+	public static short getOpCode(byte[] arp, int offset)
+	{ return getShort(arp, offset + OPCODE); }
+
+	/**
+	 * @return the sender MAC address of an Ethernet/IPv4 ARP packet in a
+	 *         buffer, in the lower 48 bits of a long
+	 */
+	public static long getSenderMac(byte[] arp, int offset)
+	{ return MACAddress.read(arp, offset + SENDER_MAC); }
+
+	/**
+	 * @return the sender IP address of an Ethernet/IPv4 ARP packet in a buffer
+	 */
+	public static int getSenderIp(byte[] arp, int offset)
+	{ return getInt(arp, offset + SENDER_IP); }
+
+	/**
+	 * @return the target IP address of an Ethernet/IPv4 ARP packet in a buffer
+	 */
+	public static int getTargetIp(byte[] arp, int offset)
+	{ return getInt(arp, offset + TARGET_IP); }
+
+	/**
+	 * Write a reply to an ARP request. The reply maps the requested address
+	 * to the MAC address of the interface on which the request was received.
+	 * @param buf buffer to write the frame into, at least
+	 *        {@link #FRAME_LENGTH} bytes long
+	 * @param request buffer holding the ARP request
+	 * @param offset offset of the ARP request in the buffer
+	 * @param iface interface on which the request was received
+	 * @return length of the frame
+	 */
+	public int writeReply(byte[] buf, byte[] request, int offset, Iface iface)
+	{
+		System.arraycopy(this.getTemplate(iface).reply, 0, buf, 0,
+				FRAME_LENGTH);
+		// Ethernet destination and target are the requester
+		System.arraycopy(request, offset + SENDER_MAC, buf, 0, 6);
+		System.arraycopy(request, offset + SENDER_MAC, buf, 14 + TARGET_MAC,
+				10);
+		// Sender IP is whichever local address was asked for
+		System.arraycopy(request, offset + TARGET_IP, buf, 14 + SENDER_IP, 4);
+		return FRAME_LENGTH;
+	}
+
+	/**
+	 * Write a broadcast request for the MAC address of an IP address.
+	 * @param buf buffer to write the frame into, at least
+	 *        {@link #FRAME_LENGTH} bytes long
+	 * @param ip IP address whose MAC address is desired
+	 * @param iface interface on which the request will be sent
+	 * @return length of the frame
+	 */
+	public int writeRequest(byte[] buf, int ip, Iface iface)
+	{
+		System.arraycopy(this.getTemplate(iface).request, 0, buf, 0,
+				FRAME_LENGTH);
+		putInt(buf, 14 + TARGET_IP, ip);
+		return FRAME_LENGTH;
+	}
+
+	/**
+	 * Find the template for an interface, building a new one if the interface
+	 * is new or its addresses have changed. Routers have few interfaces, so a
+	 * linear scan is cheaper than hashing.
+	 */
+	private Template getTemplate(Iface iface)
+	{
+		Template[] current = this.templates;
+		long mac = iface.getMacAddress().toLong();
+		int ip = iface.getIpAddress();
+		int index;
+		for (index = 0; index < current.length; index++)
+		{
+			Template template = current[index];
+			if (template.iface == iface)
+			{
+				if (template.mac == mac && template.ip == ip)
+				{ return template; }
+				break;
+			}
+		}
+
+		Template template = new Template(iface, mac, ip);
+		synchronized (this)
+		{
+			current = this.templates;
+			for (index = 0; index < current.length; index++)
+			{
+				if (current[index].iface == iface)
+				{ break; }
+			}
+			Template[] updated = Arrays.copyOf(current,
+					Math.max(current.length, index + 1));
+			updated[index] = template;
+			this.templates = updated;
+		}
+		return template;
+	}
+
+	private static short getShort(byte[] buf, int offset)
+	{ return (short)(((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff)); }
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	private static void putShort(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >>> 8);
+		buf[offset + 1] = (byte)value;
+	}
+
+	private static void putInt(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >>> 24);
+		buf[offset + 1] = (byte)(value >>> 16);
+		buf[offset + 2] = (byte)(value >>> 8);
+		buf[offset + 3] = (byte)value;
+	}
+
+	/**
+	 * Reply and request frames for one interface, complete except for the
+	 * target's addresses.
+	 */
+	private static class Template
+	{
+		final Iface iface;
+		final long mac;
+		final int ip;
+		final byte[] reply;
+		final byte[] request;
+
+		Template(Iface iface, long mac, int ip)
+		{
+			this.iface = iface;
+			this.mac = mac;
+			this.ip = ip;
+			this.reply = build(ARP.OP_REPLY, mac, ip);
+			this.request = build(ARP.OP_REQUEST, mac, ip);
+			MACAddress.write(MACAddress.BROADCAST.toLong(), this.request, 0);
+		}
+
+		private static byte[] build(short opCode, long mac, int ip)
+		{
+			byte[] frame = new byte[FRAME_LENGTH];
+			MACAddress.write(mac, frame, 6);
+			putShort(frame, 12, Ethernet.TYPE_ARP);
+			putShort(frame, 14, ARP.HW_TYPE_ETHERNET);
+			putShort(frame, 16, ARP.PROTO_TYPE_IP);
+			frame[18] = 6;
+			frame[19] = 4;
+			putShort(frame, 14 + OPCODE, opCode);
+			MACAddress.write(mac, frame, 14 + SENDER_MAC);
+			putInt(frame, 14 + SENDER_IP, ip);
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import edu.wisc.cs.sdn.vnet.PacketLog;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketPool;
+import net.floodlightcontroller.packet.ParseStatus;
+
+/**
+ * Reassembles IPv4 datagrams from fragments addressed to the router, using
+ * the hole descriptor algorithm from RFC 815. Fragment groups are found in
+ * constant time by (source, destination, identification, protocol), expire
+ * after a timeout, and the total bytes buffered across all groups is bounded;
+ * the oldest groups are evicted to make room for new fragments. A datagram
+ * whose reassembled transport header is malformed is dropped, and counted.
+ */
+public class FragmentReassembler
+{
+	/** Time (in milliseconds) to wait for all fragments of a datagram */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	/** Maximum bytes buffered for all incomplete datagrams */
+	public static final int DEFAULT_MAX_BYTES = 1 << 20;
+
+	/** Largest IPv4 payload a datagram can carry */
+	private static final int MAX_PAYLOAD = 65535 - 20;
+
+	/** Incomplete datagrams, oldest first */
+	private LinkedHashMap<FragmentKey,FragmentGroup> groups;
+
+	/** Time (in milliseconds) to wait for all fragments of a datagram */
+	private long timeout;
+
+	/** Maximum bytes buffered for all incomplete datagrams */
+	private int maxBytes;
+
+	/** Bytes currently buffered for all incomplete datagrams */
+	private int bufferedBytes;
+
+	/** Number of reassembled datagrams dropped as malformed */
+	private long dropped;
+
+	/**
+	 * Creates a reassembler with the default timeout and memory bound.
+	 */
+	public FragmentReassembler()
+	{ this(DEFAULT_TIMEOUT, DEFAULT_MAX_BYTES); }
+
+	/**
+	 * Creates a reassembler.
+	 * @param timeout time (in milliseconds) to wait for all fragments
+	 *        of a datagram
+	 * @param maxBytes maximum bytes buffered for all incomplete datagrams
+	 */
+	public FragmentReassembler(long timeout, int maxBytes)
+	{
+		this.groups = new LinkedHashMap<FragmentKey,FragmentGroup>();
+		this.timeout = timeout;
+		this.maxBytes = maxBytes;
+		this.bufferedBytes = 0;
+		this.dropped = 0;
+	}
+
+	/**
+	 * Add a fragment to its datagram.
+	 * @param fragment a received fragment
+	 * @param now current time (in milliseconds)
+	 * @return the reassembled datagram if the fragment completed it and is
+	 *         well formed, otherwise null
+	 */
+	public synchronized IPv4 add(IPv4 fragment, long now)
+	{
+		this.expire(now);
+
+		Data data = fragmentData(fragment);
+		int first = fragment.getFragmentOffset() * 8;
+		int last = first + data.getLength() - 1;
+		boolean more = (fragment.getFlags() & IPv4.FLAG_MORE_FRAGMENTS) != 0;
+		if (0 == data.getLength() || last >= MAX_PAYLOAD
+				|| (more && (data.getLength() % 8) != 0))
+		{ return null; }
+
+		FragmentKey key = new FragmentKey(fragment);
+		FragmentGroup group = this.groups.get(key);
+		if (null == group)
+		{
+			group = new FragmentGroup(now);
+			this.groups.put(key, group);
+		}
+
+		// Make room for the fragment's data
+		int needed = Math.max(0, last + 1 - group.data.length);
+		if (needed > 0)
+		{
+			int capacity = Math.min(MAX_PAYLOAD,
+					Math.max(last + 1, group.data.length * 2));
+			needed = capacity - group.data.length;
+			if (!this.reserve(needed, group))
+			{
+				this.remove(key);
+				return null;
+			}
+			group.data = Arrays.copyOf(group.data, capacity);
+			this.bufferedBytes += needed;
+		}
+
+		data.writeTo(group.data, first);
+		if (0 == first)
+		{ group.header = copyHeader(fragment); }
+		if (group.fill(first, last, more))
+		{
+			this.remove(key);
+			ParseStatus status = IPv4.validatePayload(
+					group.header.getProtocol(), group.data, 0, group.length);
+			if (status != ParseStatus.OK)
+			{
+				this.dropped++;
+				if (PacketLog.INFO)
+				{ PacketLog.dropped(null, null, status.name()); }
+				return null;
+			}
+			return group.reassemble();
+		}
+		return null;
+	}
+
+	/**
+	 * Discard incomplete datagrams whose timeout has passed.
+	 * @param now current time (in milliseconds)
+	 * @return number of datagrams discarded
+	 */
+	public synchronized int expire(long now)
+	{
+		int expired = 0;
+		Iterator<FragmentGroup> it = this.groups.values().iterator();
+		while (it.hasNext())
+		{
+			FragmentGroup group = it.next();
+			if (now - group.created < this.timeout)
+			{ break; }
+			this.bufferedBytes -= group.data.length;
+			it.remove();
+			expired++;
+		}
+		return expired;
+	}
+
+	/**
+	 * @return number of incomplete datagrams
+	 */
+	public synchronized int size()
+	{ return this.groups.size(); }
+
+	/**
+	 * @return bytes buffered for all incomplete datagrams
+	 */
+	public synchronized int getBufferedBytes()
+	{ return this.bufferedBytes; }
+
+	/**
+	 * @return number of reassembled datagrams dropped because their
+	 *         transport header was malformed
+	 */
+	public synchronized long getDropCount()
+	{ return this.dropped; }
+
+	/**
+	 * Evict the oldest incomplete datagrams, other than the one being
+	 * added to, until the requested number of bytes fits within the bound.
+	 */
+	private boolean reserve(int bytes, FragmentGroup current)
+	{
+		Iterator<FragmentGroup> it = this.groups.values().iterator();
+		while (this.bufferedBytes + bytes > this.maxBytes && it.hasNext())
+		{
+			FragmentGroup group = it.next();
+			if (group == current)
+			{ continue; }
+			this.bufferedBytes -= group.data.length;
+			it.remove();
+		}
+		return (this.bufferedBytes + bytes <= this.maxBytes);
+	}
+
+	private void remove(FragmentKey key)
+	{
+		FragmentGroup group = this.groups.remove(key);
+		if (group != null)
+		{ this.bufferedBytes -= group.data.length; }
+	}
+
+	/**
+	 * Copy the header fields of a fragment, since the fragment itself may be
+	 * released back to the packet pool once it has been handled.
+	 */
+	private static IPv4 copyHeader(IPv4 fragment)
+	{
+		IPv4 header = new IPv4();
+		header.setDiffServ(fragment.getDiffServ());
+		header.setIdentification(fragment.getIdentification());
+		header.setFlags(fragment.getFlags());
+		header.setTtl(fragment.getTtl());
+		header.setProtocol(fragment.getProtocol());
+		header.setSourceAddress(fragment.getSourceAddress());
+		header.setDestinationAddress(fragment.getDestinationAddress());
+		header.setOptions(fragment.getOptions());
+		return header;
+	}
+
+	private static Data fragmentData(IPv4 fragment)
+	{
+		IPacket payload = fragment.getPayload();
+		if (null == payload)
+		{ return new Data(new byte[0]); }
+		if (payload instanceof Data)
+		{ return (Data)payload; }
+		payload.setParent(fragment);
+		return new Data(payload.serialize());
+	}
+
+	/**
+	 * Identifies the fragments of one datagram.
+	 */
+	private static class FragmentKey
+	{
+		private final long addresses;
+		private final int idAndProtocol;
+
+		FragmentKey(IPv4 fragment)
+		{
+			this.addresses = ((long)fragment.getSourceAddress() << 32)
+					| (fragment.getDestinationAddress() & 0xffffffffL);
+			this.idAndProtocol = ((fragment.getIdentification() & 0xffff) << 8)
+					| (fragment.getProtocol() & 0xff);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof FragmentKey))
+			{ return false; }
+			FragmentKey other = (FragmentKey)obj;
+			return (this.addresses == other.addresses)
+					&& (this.idAndProtocol == other.idAndProtocol);
+		}
+
+		@Override
+		public int hashCode()
+		{ return 31 * Long.hashCode(this.addresses) + this.idAndProtocol; }
+	}
+
+	/**
+	 * A hole in a datagram's payload (RFC 815), from byte first to byte last
+	 * inclusive.
+	 */
+	private static class Hole
+	{
+		int first;
+		int last;
+		Hole next;
+
+		Hole(int first, int last, Hole next)
+		{
+			this.first = first;
+			this.last = last;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Fragments received so far for one datagram.
+	 */
+	private static class FragmentGroup
+	{
+		/** Time (in milliseconds) the first fragment arrived */
+		final long created;
+
+		/** Payload bytes received so far */
+		byte[] data;
+
+		/** Header of the fragment at offset zero, which the datagram keeps */
+		IPv4 header;
+
+		/** Length of the payload, once the last fragment has arrived */
+		int length;
+
+		/** Holes that remain to be filled */
+		Hole holes;
+
+		FragmentGroup(long created)
+		{
+			this.created = created;
+			this.data = new byte[0];
+			this.header = null;
+			this.length = -1;
+			this.holes = new Hole(0, Integer.MAX_VALUE, null);
+		}
+
+		/**
+		 * Update the hole list for a newly received fragment.
+		 * @return true if the datagram is complete
+		 */
+		boolean fill(int first, int last, boolean more)
+		{
+			if (!more)
+			{ this.length = last + 1; }
+
+			Hole prev = null;
+			Hole hole = this.holes;
+			while (hole != null)
+			{
+				Hole next = hole.next;
+				if (first > hole.last || last < hole.first)
+				{
+					prev = hole;
+					hole = next;
+					continue;
+				}
+
+				// Replace the hole by whatever the fragment leaves uncovered
+				if (null == prev)
+				{ this.holes = next; }
+				else
+				{ prev.next = next; }
+				if (first > hole.first)
+				{ prev = this.insertAfter(prev, new Hole(hole.first, first - 1, next)); }
+				if (more && last < hole.last)
+				{ prev = this.insertAfter(prev, new Hole(last + 1, hole.last, next)); }
+				hole = next;
+			}
+
+			// Holes past the end of the datagram can never be filled
+			if (this.length >= 0)
+			{
+				prev = null;
+				for (hole = this.holes; hole != null; hole = hole.next)
+				{
+					if (hole.first >= this.length)
+					{
+						if (null == prev)
+						{ this.holes = hole.next; }
+						else
+						{ prev.next = hole.next; }
+					}
+					else
+					{
+						hole.last = Math.min(hole.last, this.length - 1);
+						prev = hole;
+					}
+				}
+			}
+
+			return (null == this.holes) && (this.length >= 0)
+					&& (this.header != null);
+		}
+
+		private Hole insertAfter(Hole prev, Hole hole)
+		{
+			if (null == prev)
+			{ this.holes = hole; }
+			else
+			{ prev.next = hole; }
+			return hole;
+		}
+
+		IPv4 reassemble()
+		{
+			IPv4 datagram = new IPv4();
+			datagram.setDiffServ(this.header.getDiffServ());
+			datagram.setIdentification(this.header.getIdentification());
+			datagram.setFlags((byte)(this.header.getFlags()
+					& ~IPv4.FLAG_MORE_FRAGMENTS));
+			datagram.setFragmentOffset((short)0);
+			datagram.setTtl(this.header.getTtl());
+			datagram.setProtocol(this.header.getProtocol());
+			datagram.setSourceAddress(this.header.getSourceAddress());
+			datagram.setDestinationAddress(this.header.getDestinationAddress());
+			datagram.setOptions(this.header.getOptions());
+
+			IPacket payload;
+			Class<? extends IPacket> clazz =
+					IPv4.protocolClassMap.get(datagram.getProtocol());
+			if (clazz != null)
+			{ payload = PacketPool.obtain(clazz); }
+			else
+			{ payload = PacketPool.obtain(Data.class); }
+			payload = payload.deserialize(this.data, 0, this.length);
+			datagram.setPayload(payload);
+			payload.setParent(datagram);
+			return datagram;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.InternetChecksum;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Generates the ICMP messages a router sends, writing them directly as
+ * bytes rather than building and serializing packet objects.
+ *
+ * An error message is copied from a prebuilt Ethernet, IPv4 and ICMP header
+ * template into a buffer reused by each thread; only the addresses, lengths,
+ * type, code and checksums are filled in, and the offending packet's IPv4
+ * header and first 8 bytes of payload are quoted from the bytes it was
+ * received in. An echo reply is made from the echo request itself, by
+ * swapping its addresses in place and updating its checksums incrementally.
+ */
+public class IcmpGenerator
+{
+	/** Destination unreachable codes */
+	public static final byte CODE_NET_UNREACHABLE = 0;
+	public static final byte CODE_HOST_UNREACHABLE = 1;
+	public static final byte CODE_PORT_UNREACHABLE = 3;
+	public static final byte CODE_FRAG_NEEDED = 4;
+
+	/** Time exceeded code for a TTL that expired in transit */
+	public static final byte CODE_TTL_EXPIRED = 0;
+
+	/** TTL for messages originated by the router */
+	public static final byte DEFAULT_TTL = 64;
+
+	/** Offsets within an untagged frame */
+	private static final int IP_OFFSET = 14;
+	private static final int ICMP_OFFSET = IP_OFFSET + 20;
+	private static final int QUOTE_OFFSET = ICMP_OFFSET + 8;
+
+	/** Largest quote: an IPv4 header with options, plus 8 bytes */
+	private static final int MAX_QUOTE = 60 + 8;
+
+	/** Length of the longest error message frame */
+	public static final int MAX_ERROR_LENGTH = QUOTE_OFFSET + MAX_QUOTE;
+
+	/** Headers of an error message, without addresses, lengths or checksums */
+	private static final byte[] ERROR_TEMPLATE = new byte[QUOTE_OFFSET];
+	static
+	{
+		ERROR_TEMPLATE[12] = (byte)(Ethernet.TYPE_IPv4 >>> 8);
+		ERROR_TEMPLATE[13] = (byte)Ethernet.TYPE_IPv4;
+		ERROR_TEMPLATE[IP_OFFSET] = 0x45;
+		ERROR_TEMPLATE[IP_OFFSET + 8] = DEFAULT_TTL;
+		ERROR_TEMPLATE[IP_OFFSET + 9] = IPv4.PROTOCOL_ICMP;
+	}
+
+	/** Buffer each thread writes error messages into */
+	private static final ThreadLocal<byte[]> buffers =
+			new ThreadLocal<byte[]>() {
+				protected byte[] initialValue()
+				{ return new byte[MAX_ERROR_LENGTH]; }
+			};
+
+	/** Identification for the next message the router originates */
+	private final AtomicInteger identification = new AtomicInteger();
+
+	/**
+	 * @return a buffer, reused by the calling thread, that is large enough
+	 *         for any error message
+	 */
+	public static byte[] getBuffer()
+	{ return buffers.get(); }
+
+	/**
+	 * Determine whether an ICMP error may be sent about a packet. No error is
+	 * sent about a fragment other than the first, nor about an ICMP error
+	 * (RFC 1122, section 3.2.2).
+	 * @param ipPacket the packet that caused the error
+	 * @return true if an error may be sent
+	 */
+	public static boolean isErrorAllowed(IPv4 ipPacket)
+	{
+		if (ipPacket.getFragmentOffset() != 0)
+		{ return false; }
+		if (ipPacket.getProtocol() != IPv4.PROTOCOL_ICMP)
+		{ return true; }
+		IPacket payload = ipPacket.getPayload();
+		if (!(payload instanceof ICMP))
+		{ return true; }
+		switch (((ICMP)payload).getIcmpType())
+		{
+		case ICMP.TYPE_DESTINATION_UNREACHABLE:
+		case ICMP.TYPE_SOURCE_QUENCH:
+		case ICMP.TYPE_REDIRECT:
+		case ICMP.TYPE_TIME_EXCEEDED:
+		case ICMP.TYPE_PARAMETER_PROBLEM:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Write an ICMP error message about a packet, addressed to the packet's
+	 * source.
+	 * @param buf buffer to write the frame into, at least
+	 *        {@link #MAX_ERROR_LENGTH} bytes long
+	 * @param ipPacket the packet that caused the error
+	 * @param sourceMac source MAC address for the frame
+	 * @param destinationMac destination MAC address for the frame
+	 * @param sourceIp source IP address for the message
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param extra value for the 4 bytes that follow the ICMP checksum
+	 * @return length of the frame
+	 */
+	public int writeError(byte[] buf, IPv4 ipPacket, MACAddress sourceMac,
+			MACAddress destinationMac, int sourceIp, byte type, byte code,
+			int extra)
+	{
+		System.arraycopy(ERROR_TEMPLATE, 0, buf, 0, QUOTE_OFFSET);
+		destinationMac.writeTo(buf, 0);
+		sourceMac.writeTo(buf, 6);
+
+		// Quote the packet's IPv4 header and the first 8 bytes of its
+		// payload, straight from the received bytes if it is unmodified
+		byte[] orig;
+		int origOffset;
+		int origLength;
+		if (ipPacket.hasWireBytes())
+		{
+			orig = ipPacket.getWireBuffer();
+			origOffset = ipPacket.getWireOffset();
+			origLength = ipPacket.getWireLength();
+		}
+		else
+		{
+			orig = ipPacket.serialize();
+			origOffset = 0;
+			origLength = orig.length;
+		}
+		int quoteLength = Math.min(origLength,
+				Math.min(MAX_QUOTE, (orig[origOffset] & 0xf) * 4 + 8));
+		System.arraycopy(orig, origOffset, buf, QUOTE_OFFSET, quoteLength);
+
+		int totalLength = QUOTE_OFFSET - IP_OFFSET + quoteLength;
+		putShort(buf, IP_OFFSET + 2, totalLength);
+		putShort(buf, IP_OFFSET + 4, this.identification.getAndIncrement());
+		putInt(buf, IP_OFFSET + 12, sourceIp);
+		putInt(buf, IP_OFFSET + 16, ipPacket.getSourceAddress());
+		putShort(buf, IP_OFFSET + 10,
+				InternetChecksum.checksum(buf, IP_OFFSET, 20, 0));
+
+		buf[ICMP_OFFSET] = type;
+		buf[ICMP_OFFSET + 1] = code;
+		putInt(buf, ICMP_OFFSET + 4, extra);
+		putShort(buf, ICMP_OFFSET + 2, InternetChecksum.checksum(buf,
+				ICMP_OFFSET, 8 + quoteLength, 0));
+
+		return IP_OFFSET + totalLength;
+	}
+
+	/**
+	 * Turn a received echo request into an echo reply, in the buffer the
+	 * request was received in. The Ethernet and IPv4 addresses are swapped,
+	 * the TTL is reset, and the type is changed, with both checksums updated
+	 * incrementally (RFC 1624). Since the buffer is modified underneath it,
+	 * the packet must not be used afterwards other than to release it; the
+	 * reply is sent from the packet's wire bytes.
+	 * @param etherPacket the frame containing the echo request, which must
+	 *        be unmodified since it was received
+	 * @param sourceMac source MAC address for the reply
+	 * @return true if the reply was written; false if the packet has been
+	 *         modified, or is not an echo request
+	 */
+	public static boolean echoReplyInPlace(Ethernet etherPacket,
+			MACAddress sourceMac)
+	{
+		IPacket payload = etherPacket.getPayload();
+		if (!etherPacket.hasWireBytes() || !(payload instanceof IPv4))
+		{ return false; }
+		IPv4 ipPacket = (IPv4)payload;
+		if (!ipPacket.hasWireBytes()
+				|| !(ipPacket.getPayload() instanceof ICMP)
+				|| ((ICMP)ipPacket.getPayload()).getIcmpType()
+					!= ICMP.TYPE_ECHO_REQUEST)
+		{ return false; }
+
+		byte[] buf = etherPacket.getWireBuffer();
+		int etherOffset = etherPacket.getWireOffset();
+		int ipOffset = ipPacket.getWireOffset();
+		int icmpOffset = ipOffset + (buf[ipOffset] & 0xf) * 4;
+
+		// Reply to whoever sent the request
+		System.arraycopy(buf, etherOffset + 6, buf, etherOffset, 6);
+		sourceMac.writeTo(buf, etherOffset + 6);
+
+		// Swapping the addresses leaves the header checksum unchanged
+		int sourceIp = getInt(buf, ipOffset + 12);
+		System.arraycopy(buf, ipOffset + 16, buf, ipOffset + 12, 4);
+		putInt(buf, ipOffset + 16, sourceIp);
+		short oldWord = getShort(buf, ipOffset + 8);
+		buf[ipOffset + 8] = DEFAULT_TTL;
+		putShort(buf, ipOffset + 10, InternetChecksum.update(
+				getShort(buf, ipOffset + 10), oldWord,
+				getShort(buf, ipOffset + 8)));
+
+		oldWord = getShort(buf, icmpOffset);
+		buf[icmpOffset] = ICMP.TYPE_ECHO_REPLY;
+		putShort(buf, icmpOffset + 2, InternetChecksum.update(
+				getShort(buf, icmpOffset + 2), oldWord,
+				getShort(buf, icmpOffset)));
+		return true;
+	}
+
+	/**
+	 * Turn an echo request that is no longer in the bytes it was received in,
+	 * e.g. because it was reassembled from fragments, into an echo reply.
+	 * @param ipPacket the echo request
+	 * @return true if the packet was an echo request, and is now a reply
+	 */
+	public static boolean echoReply(IPv4 ipPacket)
+	{
+		if (!(ipPacket.getPayload() instanceof ICMP))
+		{ return false; }
+		ICMP icmp = (ICMP)ipPacket.getPayload();
+		if (icmp.getIcmpType() != ICMP.TYPE_ECHO_REQUEST)
+		{ return false; }
+
+		icmp.setIcmpType(ICMP.TYPE_ECHO_REPLY);
+		icmp.setChecksum((short)0);
+		int sourceIp = ipPacket.getSourceAddress();
+		ipPacket.setSourceAddress(ipPacket.getDestinationAddress());
+		ipPacket.setDestinationAddress(sourceIp);
+		ipPacket.setTtl(DEFAULT_TTL);
+		ipPacket.resetChecksum();
+		return true;
+	}
+
+	private static short getShort(byte[] buf, int offset)
+	{ return (short)(((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff)); }
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	private static void putShort(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >>> 8);
+		buf[offset + 1] = (byte)value;
+	}
+
+	private static void putInt(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >>> 24);
+		buf[offset + 1] = (byte)(value >>> 16);
+		buf[offset + 2] = (byte)(value >>> 8);
+		buf[offset + 3] = (byte)value;
+	}
+}
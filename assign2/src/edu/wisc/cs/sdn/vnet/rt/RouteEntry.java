@@ -71,11 +71,18 @@ public class RouteEntry
 	{ this.iface = iface; }
 	
 	public String toString()
+	{ return this.appendTo(new StringBuilder(64)).toString(); }
+
+	/**
+	 * Append a description of the entry, as returned by toString.
+	 * @param sb the builder to append to
+	 * @return the builder
+	 */
+	public StringBuilder appendTo(StringBuilder sb)
 	{
-		return String.format("%s \t%s \t%s \t%s",
-				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
-				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+		IPv4.appendIPv4Address(sb, this.destinationAddress).append(" \t");
+		IPv4.appendIPv4Address(sb, this.gatewayAddress).append(" \t");
+		IPv4.appendIPv4Address(sb, this.maskAddress).append(" \t");
+		return sb.append(this.iface.getName());
 	}
 }
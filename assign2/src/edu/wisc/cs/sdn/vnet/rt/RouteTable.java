@@ -4,10 +4,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 
@@ -15,18 +11,25 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
  * Route table for a router.
+ *
+ * Lookups take no lock, so any number of threads can forward packets at
+ * once. The entries are kept in an array sorted from the longest mask to
+ * the shortest, so the first match is the longest prefix match; changes
+ * copy the array and publish the copy, and replace entries rather than
+ * modifying them, so a lookup always sees a consistent table.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Entries in the route table, longest mask first; never modified once
+	 *  published */
+	private volatile RouteEntry[] entries; 
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this.entries = new RouteEntry[0]; }
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,15 +38,14 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
+		// The first match has the longest prefix
+		for (RouteEntry entry : this.entries)
 		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match	  */
-			
-			return null;
-			
-			/*****************************************************************/
+			int mask = entry.getMaskAddress();
+			if ((ip & mask) == (entry.getDestinationAddress() & mask))
+			{ return entry; }
 		}
+		return null;
 	}
 	
 	/**
@@ -85,51 +87,56 @@ public class RouteTable
 			{ break; }
 			
 			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-					"%s\\s+%s\\s+%s\\s+%s", 
-					ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			int[] bounds = new int[8];
+			if (splitFields(line, bounds) != 4 
+					|| !isIfaceName(line, bounds[6], bounds[7]))
 			{
 				System.err.println("Invalid entry in routing table file");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
+			long dstIp = parseIp(line, bounds[0], bounds[1]);
+			if (dstIp <= 0)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
+						+ line.substring(bounds[0], bounds[1]) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 			
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
+			// A gateway of 0.0.0.0 is valid, and means the destination is
+			// directly reachable
+			long gwIp = parseIp(line, bounds[2], bounds[3]);
+			if (gwIp < 0)
+			{
+				System.err.println("Error loading route table, cannot convert "
+						+ line.substring(bounds[2], bounds[3]) + " to valid IP");
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
 			
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
+			long maskIp = parseIp(line, bounds[4], bounds[5]);
+			if (maskIp <= 0)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
+						+ line.substring(bounds[4], bounds[5]) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 			
-			String ifaceName = matcher.group(4).trim();
+			String ifaceName = line.substring(bounds[6], bounds[7]);
 			Iface iface = router.getInterface(ifaceName);
 			if (null == iface)
 			{
 				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
+						+ ifaceName);
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
 			
 			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			this.insert((int)dstIp, (int)gwIp, (int)maskIp, iface);
 		}
 	
 		// Close the file
@@ -137,6 +144,62 @@ public class RouteTable
 		return true;
 	}
 	
+	/**
+	 * Find the whitespace-separated fields of a line without allocating
+	 * substrings or compiling a pattern.
+	 * @param line the line to split
+	 * @param bounds filled with the start and end index of each field
+	 * @return number of fields in the line, which may exceed the number
+	 *         whose bounds fit in the array
+	 */
+	static int splitFields(String line, int[] bounds)
+	{
+		int fields = 0;
+		int i = 0;
+		int length = line.length();
+		while (true)
+		{
+			while (i < length && Character.isWhitespace(line.charAt(i)))
+			{ i++; }
+			if (i == length)
+			{ return fields; }
+			int start = i;
+			while (i < length && !Character.isWhitespace(line.charAt(i)))
+			{ i++; }
+			if (2 * fields + 1 < bounds.length)
+			{
+				bounds[2 * fields] = start;
+				bounds[2 * fields + 1] = i;
+			}
+			fields++;
+		}
+	}
+
+	/**
+	 * Parse an IP address field.
+	 * @return the address as an unsigned value, or -1 if the field is
+	 *         malformed; 0.0.0.0 parses as zero, so it can be told apart
+	 */
+	static long parseIp(String line, int start, int end)
+	{
+		try
+		{ return IPv4.toIPv4Address(line, start, end) & 0xffffffffL; }
+		catch (IllegalArgumentException e)
+		{ return -1; }
+	}
+
+	private static boolean isIfaceName(String line, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			char c = line.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') 
+					|| (c >= '0' && c <= '9')))
+			{ return false; }
+		}
+		return true;
+	}
+	
 	/**
 	 * Add an entry to the route table.
 	 * @param dstIp destination IP
@@ -148,9 +211,21 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
+		synchronized(this)
 		{ 
-			this.entries.add(entry);
+			// Insert after all entries whose masks are at least as long, so 
+			// of two entries with the same prefix the older one still wins
+			RouteEntry[] current = this.entries;
+			int index = 0;
+			while (index < current.length && Integer.compareUnsigned(
+					current[index].getMaskAddress(), maskIp) >= 0)
+			{ index++; }
+			RouteEntry[] updated = new RouteEntry[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			updated[index] = entry;
+			System.arraycopy(current, index, updated, index + 1, 
+					current.length - index);
+			this.entries = updated;
 		}
 	}
 	
@@ -162,11 +237,16 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
+		synchronized(this)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
+			RouteEntry[] current = this.entries;
+			int index = this.find(dstIp, maskIp);
+			if (index < 0) { return false; }
+			RouteEntry[] updated = new RouteEntry[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, 
+					updated.length - index);
+			this.entries = updated;
 		}
 		return true;
 	}
@@ -181,12 +261,13 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		synchronized(this)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			int index = this.find(dstIp, maskIp);
+			if (index < 0) { return false; }
+			RouteEntry[] updated = this.entries.clone();
+			updated[index] = new RouteEntry(dstIp, gwIp, maskIp, iface);
+			this.entries = updated;
 		}
 		return true;
 	}
@@ -195,33 +276,30 @@ public class RouteTable
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
 	 * @param maskIp subnet mask of the entry to find
-	 * @return a matching entry if one was found, otherwise null
+	 * @return the index of a matching entry if one was found, otherwise -1
 	 */
-	private RouteEntry find(int dstIp, int maskIp)
+	private int find(int dstIp, int maskIp)
 	{
-		synchronized(this.entries)
+		RouteEntry[] current = this.entries;
+		for (int i = 0; i < current.length; i++)
 		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
+			if ((current[i].getDestinationAddress() == dstIp)
+				&& (current[i].getMaskAddress() == maskIp)) 
+			{ return i; }
 		}
-		return null;
+		return -1;
 	}
 	
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
-			
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		RouteEntry[] current = this.entries;
+		if (0 == current.length)
+		{ return " WARNING: route table empty"; }
+		
+		StringBuilder result = new StringBuilder(
+				"Destination\tGateway\t\tMask\t\tIface\n");
+		for (RouteEntry entry : current)
+		{ entry.appendTo(result).append('\n'); }
+		return result.toString();
 	}
 }
@@ -2,9 +2,17 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.FlowHash;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
 
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.BasePacket;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.ParseStatus;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
@@ -17,6 +25,22 @@ public class Router extends Device
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 	
+	/** Reassembles fragmented datagrams addressed to the router */
+	private FragmentReassembler reassembler;
+	
+	/** Writes the ICMP messages the router sends */
+	private IcmpGenerator icmpGenerator;
+	
+	/** Writes the ARP requests and replies the router sends */
+	private ArpResponder arpResponder;
+	
+	/** Reasons for dropping packets, for the packet log */
+	private static final String DROP_BAD_CHECKSUM = "bad-checksum";
+	private static final String DROP_TTL_EXPIRED = "ttl-expired";
+	private static final String DROP_NO_ROUTE = "no-route";
+	private static final String DROP_NO_ARP_ENTRY = "no-arp-entry";
+	private static final String DROP_FRAG_NEEDED = "frag-needed";
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -26,6 +50,23 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.reassembler = new FragmentReassembler();
+		this.icmpGenerator = new IcmpGenerator();
+		this.arpResponder = new ArpResponder();
+		
+		// Forget addresses that stopped answering and are no longer in use,
+		// and datagrams whose fragments stopped arriving
+		final ArpCache arpCache = this.arpCache;
+		final FragmentReassembler reassembler = this.reassembler;
+		this.tasks.schedule("expiry", ArpCache.REQUEST_INTERVAL, 
+				new Runnable() {
+					public void run()
+					{
+						long now = System.currentTimeMillis();
+						arpCache.expire(now);
+						reassembler.expire(now);
+					}
+				});
 	}
 	
 	/**
@@ -71,6 +112,14 @@ public class Router extends Device
 		System.out.print(this.arpCache.toString());
 		System.out.println("----------------------------------");
 	}
+	
+	/**
+	 * Hash a frame by the IPv4 flow it carries, so packets of different
+	 * flows between the same pair of neighbours are spread across workers.
+	 */
+	@Override
+	public int getFlowHash(byte[] frame, int offset, int length)
+	{ return FlowHash.ofIpv4FiveTuple(frame, offset, length); }
 
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
@@ -79,13 +128,311 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (PacketLog.DEBUG)
+		{ PacketLog.received(etherPacket, inIface); }
+		
+		switch(etherPacket.getEtherType())
+		{
+		case Ethernet.TYPE_IPv4:
+			this.handleIpPacket(etherPacket, inIface);
+			break;
+		case Ethernet.TYPE_ARP:
+			this.handleArpPacket(etherPacket, inIface);
+			break;
+		}
+		
+		// Return the packet objects and receive buffer to the pool
+		etherPacket.release();
+	}
+	
+	/**
+	 * Handle an ARP packet, reading it in place from the bytes it was
+	 * received in. Requests for any of the router's addresses are answered,
+	 * and the sender of any packet addressed to the router is learned.
+	 * @param etherPacket the Ethernet packet containing the ARP packet
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPacket arpPacket = etherPacket.getPayload();
+		byte[] arp;
+		int offset;
+		int length;
+		if (arpPacket instanceof BasePacket 
+				&& ((BasePacket)arpPacket).hasWireBytes())
+		{
+			BasePacket wirePacket = (BasePacket)arpPacket;
+			arp = wirePacket.getWireBuffer();
+			offset = wirePacket.getWireOffset();
+			length = wirePacket.getWireLength();
+		}
+		else
+		{
+			arp = arpPacket.serialize();
+			offset = 0;
+			length = arp.length;
+		}
+		if (!ArpResponder.isEthernetIpv4(arp, offset, length))
+		{ return; }
 		
-		/********************************************************************/
-		/* TODO: Handle packets                                             */
+		// Ignore packets not addressed to one of the router's interfaces
+		int targetIp = ArpResponder.getTargetIp(arp, offset);
+		boolean local = false;
+		for (Iface iface : this.interfaces.values())
+		{
+			if (iface.getIpAddress() == targetIp)
+			{
+				local = true;
+				break;
+			}
+		}
+		if (!local)
+		{ return; }
+		
+		this.arpCache.update(ArpResponder.getSenderMac(arp, offset), 
+				ArpResponder.getSenderIp(arp, offset));
+		
+		if (ARP.OP_REQUEST == ArpResponder.getOpCode(arp, offset))
+		{
+			byte[] buf = ArpResponder.getBuffer();
+			int replyLength = this.arpResponder.writeReply(buf, arp, offset, 
+					inIface);
+			this.sendPacket(buf, 0, replyLength, inIface);
+		}
+	}
+	
+	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		
+		// Drop packets with a corrupted header, checking the checksum
+		// against the received bytes rather than reserializing the packet
+		if (!ipPacket.verifyHeaderChecksum())
+		{
+			this.countDrop(ParseStatus.BAD_CHECKSUM);
+			if (PacketLog.INFO)
+			{ PacketLog.dropped(etherPacket, inIface, DROP_BAD_CHECKSUM); }
+			return;
+		}
+		
+		// Consume packets addressed to one of the router's interfaces
+		for (Iface iface : this.interfaces.values())
+		{
+			if (iface.getIpAddress() == ipPacket.getDestinationAddress())
+			{
+				this.handleLocalPacket(etherPacket, inIface);
+				return;
+			}
+		}
+		
+		// Drop packets whose TTL expires
+		if ((ipPacket.getTtl() & 0xff) <= 1)
+		{
+			if (PacketLog.INFO)
+			{ PacketLog.dropped(etherPacket, inIface, DROP_TTL_EXPIRED); }
+			this.sendIcmpError(ipPacket, inIface, ICMP.TYPE_TIME_EXCEEDED,
+					IcmpGenerator.CODE_TTL_EXPIRED, 0);
+			return;
+		}
+		
+		this.forwardIpPacket(etherPacket, inIface);
+	}
+	
+	/**
+	 * Handle an IPv4 packet addressed to the router, reassembling it first if
+	 * it is a fragment. Echo requests are answered; TCP and UDP segments are
+	 * refused, since the router has no listening ports.
+	 * @param etherPacket the Ethernet packet containing the IPv4 packet
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void handleLocalPacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (ipPacket.isFragment())
+		{
+			ipPacket = this.reassembler.add(ipPacket, 
+					System.currentTimeMillis());
+			if (null == ipPacket)
+			{ return; }
+			
+			// The datagram no longer lives in the received frame
+			if (IcmpGenerator.echoReply(ipPacket))
+			{
+				Ethernet frame = new Ethernet();
+				frame.setSourceMAC(inIface.getMacAddress());
+				frame.setDestinationMAC(etherPacket.getSourceMAC());
+				frame.setEtherType(Ethernet.TYPE_IPv4);
+				frame.setPayload(ipPacket);
+				this.sendIpPacket(frame, inIface);
+				return;
+			}
+		}
+		
+		switch (ipPacket.getProtocol())
+		{
+		case IPv4.PROTOCOL_ICMP:
+			// Answer echo requests in the buffer they were received in
+			if (IcmpGenerator.echoReplyInPlace(etherPacket, 
+					inIface.getMacAddress()))
+			{
+				this.sendPacket(etherPacket.getWireBuffer(), 
+						etherPacket.getWireOffset(), 
+						etherPacket.getWireLength(), inIface);
+			}
+			break;
+		case IPv4.PROTOCOL_TCP:
+		case IPv4.PROTOCOL_UDP:
+			this.sendIcmpError(ipPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE,
+					IcmpGenerator.CODE_PORT_UNREACHABLE, 0);
+			break;
+		}
+	}
+	
+	private void forwardIpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		
+		// Find the interface and next hop to send the packet to
+		RouteEntry bestMatch = this.routeTable.lookup(
+				ipPacket.getDestinationAddress());
+		if (null == bestMatch || bestMatch.getInterface() == inIface)
+		{
+			if (PacketLog.INFO)
+			{ PacketLog.dropped(etherPacket, inIface, DROP_NO_ROUTE); }
+			this.sendIcmpError(ipPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE,
+					IcmpGenerator.CODE_NET_UNREACHABLE, 0);
+			return;
+		}
+		Iface outIface = bestMatch.getInterface();
+		if (getLength(ipPacket) > outIface.getMtu()
+				&& (ipPacket.getFlags() & IPv4.FLAG_DONT_FRAGMENT) != 0)
+		{
+			if (PacketLog.INFO)
+			{ PacketLog.dropped(etherPacket, inIface, DROP_FRAG_NEEDED); }
+			this.sendIcmpError(ipPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE,
+					IcmpGenerator.CODE_FRAG_NEEDED, outIface.getMtu());
+			return;
+		}
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = ipPacket.getDestinationAddress(); }
+		
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{
+			if (PacketLog.INFO)
+			{ PacketLog.dropped(etherPacket, inIface, DROP_NO_ARP_ENTRY); }
+			this.resolve(nextHop, outIface, ipPacket, inIface);
+			return;
+		}
+		
+		// Only modify the packet once it will be forwarded, so any error
+		// above quotes it straight from the received bytes
+		ipPacket.decrementTtl();
+		etherPacket.setSourceMAC(outIface.getMacAddress());
+		etherPacket.setDestinationMAC(arpEntry.getMac());
+		this.sendIpPacket(etherPacket, outIface);
+	}
+	
+	/**
+	 * Resolve the MAC address of a next hop that is not in the ARP cache.
+	 * The packet that needed it is dropped; if the next hop has not answered
+	 * repeated requests, the packet's source is told the host is unreachable.
+	 * @param nextHop IP address whose MAC address is desired
+	 * @param outIface interface on which to send the request
+	 * @param ipPacket the packet that needed the MAC address
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void resolve(int nextHop, Iface outIface, IPv4 ipPacket, 
+			Iface inIface)
+	{
+		switch (this.arpCache.resolve(nextHop, System.currentTimeMillis()))
+		{
+		case ArpCache.RESOLVE_SEND:
+			byte[] buf = ArpResponder.getBuffer();
+			int length = this.arpResponder.writeRequest(buf, nextHop, outIface);
+			this.sendPacket(buf, 0, length, outIface);
+			break;
+		case ArpCache.RESOLVE_FAILED:
+			this.sendIcmpError(ipPacket, inIface, 
+					ICMP.TYPE_DESTINATION_UNREACHABLE,
+					IcmpGenerator.CODE_HOST_UNREACHABLE, 0);
+			break;
+		}
+	}
+	
+	/**
+	 * Send an IPv4 packet, fragmenting it if it exceeds the MTU of the 
+	 * outgoing interface. Packets that must not be fragmented are turned
+	 * away before they are modified, in {@link #forwardIpPacket}.
+	 * @param etherPacket the Ethernet packet containing the IPv4 packet
+	 * @param outIface interface on which to send the packet
+	 */
+	private void sendIpPacket(Ethernet etherPacket, Iface outIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (getLength(ipPacket) <= outIface.getMtu())
+		{
+			this.sendPacket(etherPacket, outIface);
+			return;
+		}
+		
+		for (IPv4 fragment : ipPacket.fragment(outIface.getMtu()))
+		{
+			Ethernet frame = new Ethernet();
+			frame.setSourceMAC(etherPacket.getSourceMAC());
+			frame.setDestinationMAC(etherPacket.getDestinationMAC());
+			frame.setEtherType(Ethernet.TYPE_IPv4);
+			frame.setPayload(fragment);
+			this.sendPacket(frame, outIface);
+		}
+	}
+	
+	/**
+	 * @return total length of an IPv4 packet, in bytes
+	 */
+	private static int getLength(IPv4 ipPacket)
+	{
+		int length = ipPacket.getTotalLength() & 0xffff;
+		if (0 == length)
+		{ length = ipPacket.serialize().length; }
+		return length;
+	}
+	
+	/**
+	 * Send an ICMP error about a packet back to the packet's source. The
+	 * message is written from a template into a reused buffer.
+	 * @param ipPacket the packet that caused the error
+	 * @param inIface the interface on which the packet was received
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param extra value for the 4 bytes that follow the ICMP checksum
+	 */
+	private void sendIcmpError(IPv4 ipPacket, Iface inIface, byte type,
+			byte code, int extra)
+	{
+		if (!IcmpGenerator.isErrorAllowed(ipPacket))
+		{ return; }
 		
+		int destination = ipPacket.getSourceAddress();
+		RouteEntry bestMatch = this.routeTable.lookup(destination);
+		if (null == bestMatch)
+		{ return; }
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = destination; }
+		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		if (null == arpEntry)
+		{ return; }
 		
-		/********************************************************************/
+		Iface outIface = bestMatch.getInterface();
+		byte[] buf = IcmpGenerator.getBuffer();
+		int length = this.icmpGenerator.writeError(buf, ipPacket, 
+				outIface.getMacAddress(), arpEntry.getMac(), 
+				inIface.getIpAddress(), type, code, extra);
+		this.sendPacket(buf, 0, length, outIface);
 	}
 }
@@ -0,0 +1,97 @@
+package edu.wisc.cs.sdn.vnet.sw;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * The MAC addresses a switch has learned, and the interface on which each
+ * can be reached. Any number of threads can learn and look up addresses at
+ * once; entries that have not been refreshed within the timeout are
+ * ignored, and removed by {@link #expire(long)}.
+ */
+public class MacTable
+{
+	/** Time (in milliseconds) an address is remembered after it is seen */
+	public static final long TIMEOUT = 15000;
+
+	/** Learned addresses; maps a MAC address, in the lower 48 bits of a
+	 *  long, to an entry */
+	private Map<Long,Entry> entries;
+
+	/**
+	 * Initializes an empty MAC table.
+	 */
+	public MacTable()
+	{ this.entries = new ConcurrentHashMap<Long,Entry>(); }
+
+	/**
+	 * Record that a MAC address was seen on an interface. Nothing is
+	 * allocated if the address is already known on that interface.
+	 * @param mac MAC address, in the lower 48 bits of a long
+	 * @param iface interface on which the address was seen
+	 * @param now current time (in milliseconds)
+	 */
+	public void learn(long mac, Iface iface, long now)
+	{
+		Entry entry = this.entries.get(mac);
+		if (entry != null && entry.iface == iface)
+		{
+			entry.lastSeen = now;
+			return;
+		}
+		this.entries.put(mac, new Entry(iface, now));
+	}
+
+	/**
+	 * Find the interface on which a MAC address can be reached.
+	 * @param mac MAC address, in the lower 48 bits of a long
+	 * @param now current time (in milliseconds)
+	 * @return the interface, or null if the address is unknown or its entry
+	 *         has timed out
+	 */
+	public Iface lookup(long mac, long now)
+	{
+		Entry entry = this.entries.get(mac);
+		if (null == entry || now - entry.lastSeen > TIMEOUT)
+		{ return null; }
+		return entry.iface;
+	}
+
+	/**
+	 * Remove entries that have timed out.
+	 * @param now current time (in milliseconds)
+	 */
+	public void expire(long now)
+	{
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (it.hasNext())
+		{
+			if (now - it.next().lastSeen > TIMEOUT)
+			{ it.remove(); }
+		}
+	}
+
+	/**
+	 * @return number of entries in the table, including any that have timed
+	 *         out but not yet been removed
+	 */
+	public int size()
+	{ return this.entries.size(); }
+
+	private static class Entry
+	{
+		final Iface iface;
+
+		/** Time (in milliseconds) the address was last seen */
+		volatile long lastSeen;
+
+		Entry(Iface iface, long lastSeen)
+		{
+			this.iface = iface;
+			this.lastSeen = lastSeen;
+		}
+	}
+}
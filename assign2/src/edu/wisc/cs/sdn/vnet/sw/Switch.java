@@ -1,22 +1,35 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {	
+	/** MAC addresses the switch has learned */
+	private MacTable macTable;
+	
 	/**
-	 * Creates a router for a specific host.
-	 * @param host hostname for the router
+	 * Creates a switch for a specific host.
+	 * @param host hostname for the switch
 	 */
 	public Switch(String host, DumpFile logfile)
 	{
 		super(host,logfile);
+		this.macTable = new MacTable();
+		
+		// Age out entries on a timer, rather than on the forwarding path
+		final MacTable macTable = this.macTable;
+		this.tasks.schedule("mac-aging", MacTable.TIMEOUT, new Runnable() {
+			public void run()
+			{ macTable.expire(System.currentTimeMillis()); }
+		});
 	}
 
 	/**
@@ -26,11 +39,32 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
-		/********************************************************************/
-		/* TODO: Handle packets                                             */
-
-		/********************************************************************/
+		if (PacketLog.DEBUG)
+		{ PacketLog.received(etherPacket, inIface); }
+		
+		long now = System.currentTimeMillis();
+		this.macTable.learn(etherPacket.getSourceMAC().toLong(), inIface, now);
+		
+		// Forward to the interface the destination was last seen on, or
+		// flood if it is unknown or a group address
+		MACAddress dstMac = etherPacket.getDestinationMAC();
+		Iface outIface = dstMac.isMulticast() ? null 
+				: this.macTable.lookup(dstMac.toLong(), now);
+		if (outIface != null)
+		{
+			if (outIface != inIface)
+			{ this.sendPacket(etherPacket, outIface); }
+		}
+		else
+		{
+			for (Iface iface : this.interfaces.values())
+			{
+				if (iface != inIface)
+				{ this.sendPacket(etherPacket, iface); }
+			}
+		}
+		
+		// Return the packet objects and receive buffer to the pool
+		etherPacket.release();
 	}
 }
@@ -0,0 +1,40 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The optional features the server agrees to use, sent in answer to the
+ * capabilities a device offers in its VNS_OPEN.
+ */
+public class CommandCapabilities extends Command
+{
+	/** Frames may be sent in VNS_PACKET_BATCH commands */
+	public static final int CAP_PACKET_BATCH = 1;
+	
+	/** Commands may be longer than the {@link #LEGACY_COMMAND_LENGTH} bytes
+	 *  peers assumed before, up to the length each side gives; needed for
+	 *  jumbo frames and long batches */
+	public static final int CAP_LARGE_COMMANDS = 2;
+	
+	/** Longest command a peer that does not negotiate a limit sends */
+	public static final int LEGACY_COMMAND_LENGTH = 10000;
+	
+	protected int mCapabilities;
+	
+	/** Longest command, of any type, the server accepts */
+	protected int mMaxCommandLength;
+	
+	public CommandCapabilities()
+	{ super(Command.VNS_CAPABILITIES); }
+	
+	protected CommandCapabilities deserialize(ByteBuffer buf)
+	{
+		super.deserialize(buf);
+		this.mCapabilities = buf.getInt();
+		this.mMaxCommandLength = buf.getInt();
+		return this;
+	}
+	
+	protected int getSize()
+	{ return super.getSize() + 8; }
+}
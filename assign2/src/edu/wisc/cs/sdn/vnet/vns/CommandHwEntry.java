@@ -8,6 +8,7 @@ public class CommandHwEntry
 	public static final int HW_ETHER = 2;
 	public static final int HW_ETH_IP = 4;
 	public static final int HW_MASK = 8;
+	public static final int HW_MTU = 16;
 	
 	protected int mKey;
 	protected byte [] value;
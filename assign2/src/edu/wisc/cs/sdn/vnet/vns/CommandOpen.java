@@ -6,6 +6,13 @@ public class CommandOpen extends Command
 {
 	protected String mVirtualHostId;
 	
+	/** Optional features the device supports, as CommandCapabilities 
+	 *  flags; the field is only sent if some are offered */
+	protected int mCapabilities;
+	
+	/** Longest command, of any type, the device accepts */
+	protected int mMaxCommandLength;
+	
 	public CommandOpen()
 	{
 		super(Command.VNS_OPEN);
@@ -18,13 +25,19 @@ public class CommandOpen extends Command
 		byte[] tmpBytes = new byte[Command.ID_SIZE];
 		buf.get(tmpBytes);
 		this.mVirtualHostId = new String(tmpBytes);
+		if (buf.remaining() >= 8)
+		{
+			this.mCapabilities = buf.getInt();
+			this.mMaxCommandLength = buf.getInt();
+		}
 		
 		return this;
 	}
 	
 	protected byte[] serialize()
 	{
-		byte[] data = new byte[this.getSize()];
+		this.mLen = this.getSize();
+		byte[] data = new byte[this.mLen];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 		
 		byte[] parentData = super.serialize();
@@ -33,10 +46,18 @@ public class CommandOpen extends Command
 		byte[] tmp = new byte[Command.ID_SIZE];
 		System.arraycopy(this.mVirtualHostId.getBytes(), 0, tmp, 0, this.mVirtualHostId.length());
 		bb.put(tmp);
+		if (this.mCapabilities != 0)
+		{
+			bb.putInt(this.mCapabilities);
+			bb.putInt(this.mMaxCommandLength);
+		}
 		
 		return data;
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + Command.ID_SIZE; }
+	{ 
+		return super.getSize() + Command.ID_SIZE 
+				+ ((this.mCapabilities != 0) ? 8 : 0); 
+	}
 }
@@ -3,26 +3,45 @@ package edu.wisc.cs.sdn.vnet.vns;
 import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketPool;
+import net.floodlightcontroller.packet.ParseStatus;
 
 public class CommandPacket extends Command
 {
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
+	/** Whether the frame could be parsed; if not, etherPacket is null */
+	protected ParseStatus status;
+	
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
 	
 	protected CommandPacket deserialize(ByteBuffer buf)
 	{
 		super.deserialize(buf);
+		this.etherPacket = null;
+		if (buf.remaining() < 16)
+		{
+			this.mInterfaceName = null;
+			this.status = ParseStatus.TRUNCATED;
+			return this;
+		}
 				
 		byte[] tmpBytes = new byte[16];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-		this.etherPacket = new Ethernet();
+		// Check the frame first, so malformed frames are dropped without
+		// the cost of an exception
+		this.status = Ethernet.validate(buf.array(), buf.position(),
+				buf.limit() - buf.position());
+		if (this.status != ParseStatus.OK)
+		{ return this; }
+		
+		this.etherPacket = PacketPool.obtain(Ethernet.class);
 		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+				buf.limit() - buf.position());
 		
 		return this;
 	}
@@ -32,8 +51,23 @@ public class CommandPacket extends Command
 	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
+		// Copy an unmodified frame straight from the bytes it was received in
+		byte[] packet;
+		int packetOffset;
+		int packetLength;
+		if (this.etherPacket.hasWireBytes())
+		{
+			packet = this.etherPacket.getWireBuffer();
+			packetOffset = this.etherPacket.getWireOffset();
+			packetLength = this.etherPacket.getWireLength();
+		}
+		else
+		{
+			packet = this.etherPacket.serialize();
+			packetOffset = 0;
+			packetLength = packet.length;
+		}
+		int size = this.getSize() + packetLength;
 		this.mLen = size;
 		
 		byte[] data = new byte[size];
@@ -46,7 +80,7 @@ public class CommandPacket extends Command
 		System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
 				this.mInterfaceName.length());
 		bb.put(tmp);
-		bb.put(packet);
+		bb.put(packet, packetOffset, packetLength);
 		
 		return data;
 	}
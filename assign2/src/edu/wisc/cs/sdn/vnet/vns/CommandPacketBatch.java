@@ -0,0 +1,50 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+/**
+ * A burst of frames in one command. After the command header come any
+ * number of entries, each the index of an interface (in the order the
+ * interfaces were listed in VNS_HW_INFO) and the length of a frame, as 
+ * 16-bit values, followed by the frame itself.
+ *
+ * Entries are read in place with the static accessors, and written by
+ * {@link CommandWriter}, so no objects are made for them.
+ */
+public class CommandPacketBatch extends Command
+{
+	/** Length of the header that precedes each frame */
+	public static final int ENTRY_HEADER_LENGTH = 4;
+	
+	/** Longest frame an entry can hold */
+	public static final int MAX_FRAME_LENGTH = 0xffff;
+	
+	public CommandPacketBatch()
+	{ super(Command.VNS_PACKET_BATCH); }
+	
+	/**
+	 * @return the interface index of the entry at an offset in a buffer
+	 */
+	public static int getInterfaceIndex(byte[] data, int offset)
+	{ return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff); }
+	
+	/**
+	 * @return the frame length of the entry at an offset in a buffer
+	 */
+	public static int getFrameLength(byte[] data, int offset)
+	{ return ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff); }
+	
+	/**
+	 * Write the header of an entry.
+	 * @param data buffer to write the header into
+	 * @param offset offset of the entry in the buffer
+	 * @param ifaceIndex index of the interface
+	 * @param frameLength length of the frame that follows
+	 */
+	public static void putEntryHeader(byte[] data, int offset, int ifaceIndex,
+			int frameLength)
+	{
+		data[offset] = (byte)(ifaceIndex >>> 8);
+		data[offset + 1] = (byte)ifaceIndex;
+		data[offset + 2] = (byte)(frameLength >>> 8);
+		data[offset + 3] = (byte)frameLength;
+	}
+}
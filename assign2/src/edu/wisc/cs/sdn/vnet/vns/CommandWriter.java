@@ -0,0 +1,584 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.wisc.cs.sdn.vnet.PacketLog;
+
+/**
+ * Coalesces VNS_PACKET commands bound for the server, so a burst of frames
+ * goes out in one gathering write, and usually one TCP segment, rather than
+ * one write per frame.
+ *
+ * Once the server has agreed to VNS_PACKET_BATCH, consecutive frames are
+ * written as entries of one batch command instead, up to the longest batch
+ * the server accepts.
+ *
+ * Command headers, and frames the caller still owns, are copied into a
+ * write buffer. A frame the caller hands over, such as a freshly serialized
+ * packet, is not copied: it becomes a segment of its own in the gathering
+ * write. Pending commands are written when {@link #flush()} is called at
+ * the end of a burst, when the write buffer fills, or when the oldest has
+ * waited longer than the flush delay.
+ *
+ * A VNS_PACKET command longer than the server accepts is dropped and
+ * counted rather than written, since the server would reject it.
+ */
+public class CommandWriter
+{
+	/** Size of a VNS_PACKET command without its frame */
+	public static final int HEADER_LENGTH = 8 + 16;
+
+	/** Most segments in one gathering write */
+	private static final int MAX_SEGMENTS = 64;
+
+	private final GatheringByteChannel channel;
+
+	/** Held while adding or writing commands; a lock rather than a monitor,
+	 *  so a virtual thread blocked writing to the channel while holding it
+	 *  does not pin its carrier thread */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Command headers and copied frames waiting to be written */
+	private final ByteBuffer buffer;
+
+	/** Where the part of the buffer not yet added as a segment begins */
+	private int segmentStart;
+
+	/** Segments waiting to be written, in order */
+	private final ByteBuffer[] segments;
+	private int segmentCount;
+
+	/** Time (from System.nanoTime) the oldest pending command was added */
+	private long oldestPending;
+
+	/** Thread writing pending commands once they have waited too long, if
+	 *  there is a flush delay */
+	private final Thread flusher;
+
+	/** Longest time (in nanoseconds) a command waits to be written */
+	private final long flushDelay;
+
+	/** Whether the last write failed, after which nothing more is written */
+	private boolean failed;
+	
+	/** Names of the interfaces, by index, each padded to 16 bytes as in a
+	 *  VNS_PACKET command; null unless frames are batched */
+	private byte[][] batchInterfaces;
+	
+	/** Longest command the server accepts */
+	private int maxCommandLength;
+	
+	/** Number of frames dropped because their command was too long */
+	private long dropped;
+	
+	/** Longest batch command the server accepts */
+	private int maxBatchLength;
+	
+	/** Longest frame that fits in a batch; longer frames are sent in
+	 *  VNS_PACKET commands */
+	private int maxBatchFrameLength;
+	
+	/** Position in the buffer of the batch being added to, or -1 */
+	private int batchStart;
+	
+	/** Length of the batch being added to, including frames handed over */
+	private int batchLength;
+
+	/**
+	 * Creates a writer.
+	 * @param channel channel connected to the server
+	 * @param bufferSize size of the write buffer
+	 * @param flushDelay longest time (in microseconds) a command waits to be
+	 *        written, or 0 to wait for an explicit flush
+	 */
+	public CommandWriter(GatheringByteChannel channel, int bufferSize,
+			long flushDelay)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		this.segmentStart = 0;
+		this.segments = new ByteBuffer[MAX_SEGMENTS];
+		this.segmentCount = 0;
+		this.flushDelay = flushDelay * 1000;
+		this.failed = false;
+		this.maxCommandLength = CommandCapabilities.LEGACY_COMMAND_LENGTH;
+		this.dropped = 0;
+		this.batchInterfaces = null;
+		this.batchStart = -1;
+
+		if (flushDelay > 0)
+		{
+			this.flusher = new Thread(new Runnable() {
+				public void run() { flushPeriodically(); }
+			}, "CommandWriter");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}
+		else
+		{ this.flusher = null; }
+	}
+
+	/**
+	 * Add a VNS_PACKET command to be written.
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param handOver true if the caller will never modify the frame again,
+	 *        so it may be written without being copied
+	 * @return false if the frame was dropped or writing to the server has
+	 *         failed, otherwise true
+	 */
+	public boolean write(String ifaceName, byte[] frame,
+			int offset, int length, boolean handOver)
+	{
+		this.lock.lock();
+		try
+		{
+			int index = this.getBatchIndex(ifaceName);
+			if (index >= 0 && length <= this.maxBatchFrameLength)
+			{
+				return this.writeBatchEntry(index, frame, offset, length, 
+						handOver);
+			}
+			this.batchStart = -1;
+			if (HEADER_LENGTH + length > this.maxCommandLength)
+			{ return this.drop(); }
+		
+			// A jumbo frame longer than the buffer is written from a copy
+			if (!handOver && HEADER_LENGTH + length > this.buffer.capacity())
+			{
+				frame = Arrays.copyOfRange(frame, offset, offset + length);
+				offset = 0;
+				handOver = true;
+			}
+			int needed = HEADER_LENGTH + (handOver ? 0 : length);
+			if (this.buffer.remaining() < needed
+					|| this.segmentCount + 2 > MAX_SEGMENTS)
+			{ this.flush(); }
+			if (this.failed)
+			{ return false; }
+			this.startPending();
+
+			ByteBuffer buf = this.buffer;
+			putHeader(buf.array(), buf.position(), ifaceName, length);
+			buf.position(buf.position() + HEADER_LENGTH);
+
+			if (handOver)
+			{
+				this.endSegment();
+				this.segments[this.segmentCount++] =
+						ByteBuffer.wrap(frame, offset, length);
+			}
+			else
+			{ buf.put(frame, offset, length); }
+			return true;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+
+	/**
+	 * Add a complete command, e.g. one built by {@link #encodePacket}, to be
+	 * written. The command is copied.
+	 * @param command buffer holding the command
+	 * @param length length of the command
+	 * @return false if the command was dropped or writing to the server has
+	 *         failed, otherwise true
+	 */
+	public boolean writeCommand(byte[] command, int length)
+	{
+		this.lock.lock();
+		try
+		{
+			if (this.batchInterfaces != null && length >= HEADER_LENGTH
+					&& Command.VNS_PACKET == getInt(command, 4)
+					&& length - HEADER_LENGTH <= this.maxBatchFrameLength)
+			{
+				int index = this.getBatchIndex(command, 8);
+				if (index >= 0)
+				{
+					return this.writeBatchEntry(index, command, HEADER_LENGTH,
+							length - HEADER_LENGTH, false);
+				}
+			}
+			this.batchStart = -1;
+			if (length > this.maxCommandLength && length >= HEADER_LENGTH
+					&& Command.VNS_PACKET == getInt(command, 4))
+			{ return this.drop(); }
+		
+			boolean fits = (length <= this.buffer.capacity());
+			if ((fits && this.buffer.remaining() < length)
+					|| this.segmentCount + (fits ? 1 : 2) > MAX_SEGMENTS)
+			{ this.flush(); }
+			if (this.failed)
+			{ return false; }
+			this.startPending();
+			if (fits)
+			{ this.buffer.put(command, 0, length); }
+			else
+			{
+				// A command longer than the buffer is written from a copy
+				this.endSegment();
+				this.segments[this.segmentCount++] =
+						ByteBuffer.wrap(Arrays.copyOf(command, length));
+			}
+			return true;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+
+	/**
+	 * Set the longest command the server accepts, once it has agreed to 
+	 * commands longer than {@link CommandCapabilities#LEGACY_COMMAND_LENGTH}.
+	 * @param maxCommandLength longest command the server accepts
+	 */
+	public void setMaxCommandLength(int maxCommandLength)
+	{
+		this.lock.lock();
+		try
+		{
+			this.maxCommandLength = maxCommandLength;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+	
+	/**
+	 * @return number of frames dropped because their VNS_PACKET command was
+	 *         longer than the server accepts
+	 */
+	public long getDropCount()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.dropped;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+	
+	/**
+	 * Count and log a frame too long for the server to accept.
+	 */
+	private boolean drop()
+	{
+		this.dropped++;
+		if (PacketLog.INFO)
+		{ PacketLog.dropped(null, null, "oversize"); }
+		return false;
+	}
+	
+	/**
+	 * Write frames as entries of VNS_PACKET_BATCH commands from now on.
+	 * @param ifaceNames names of the interfaces, in the order the server 
+	 *        listed them
+	 * @param maxBatchLength longest batch command the server accepts
+	 */
+	public void enableBatching(String[] ifaceNames, 
+			int maxBatchLength)
+	{
+		this.lock.lock();
+		try
+		{
+			byte[][] names = new byte[ifaceNames.length][16];
+			for (int i = 0; i < ifaceNames.length; i++)
+			{
+				for (int j = 0; j < 16 && j < ifaceNames[i].length(); j++)
+				{ names[i][j] = (byte)ifaceNames[i].charAt(j); }
+			}
+			this.batchInterfaces = names;
+			this.maxBatchLength = Math.min(this.buffer.capacity(), maxBatchLength);
+			this.maxBatchFrameLength = Math.min(CommandPacketBatch.MAX_FRAME_LENGTH,
+					this.maxBatchLength - 8 - CommandPacketBatch.ENTRY_HEADER_LENGTH);
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+	
+	/**
+	 * @return true if frames are written as entries of batch commands
+	 */
+	public boolean isBatching()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.batchInterfaces != null;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+	
+	/**
+	 * Add a frame to the batch being written, starting a new batch if there
+	 * is none or the frame would make it too long.
+	 */
+	private boolean writeBatchEntry(int index, byte[] frame, int offset,
+			int length, boolean handOver)
+	{
+		int entryLength = CommandPacketBatch.ENTRY_HEADER_LENGTH + length;
+		if (this.batchStart >= 0 
+				&& this.batchLength + entryLength > this.maxBatchLength)
+		{ this.batchStart = -1; }
+		int needed = ((this.batchStart < 0) ? 8 : 0) 
+				+ CommandPacketBatch.ENTRY_HEADER_LENGTH 
+				+ (handOver ? 0 : length);
+		if (this.buffer.remaining() < needed
+				|| this.segmentCount + 2 > MAX_SEGMENTS)
+		{ this.flush(); }
+		if (this.failed)
+		{ return false; }
+		this.startPending();
+		
+		ByteBuffer buf = this.buffer;
+		if (this.batchStart < 0)
+		{
+			this.batchStart = buf.position();
+			this.batchLength = 8;
+			buf.putInt(0);
+			buf.putInt(Command.VNS_PACKET_BATCH);
+		}
+		CommandPacketBatch.putEntryHeader(buf.array(), buf.position(), index,
+				length);
+		buf.position(buf.position() + CommandPacketBatch.ENTRY_HEADER_LENGTH);
+		if (handOver)
+		{
+			this.endSegment();
+			this.segments[this.segmentCount++] =
+					ByteBuffer.wrap(frame, offset, length);
+		}
+		else
+		{ buf.put(frame, offset, length); }
+		
+		// The header is still in the buffer, even if the batch spans several
+		// segments, so it can be updated in place
+		this.batchLength += entryLength;
+		buf.putInt(this.batchStart, this.batchLength);
+		return true;
+	}
+	
+	private int getBatchIndex(String ifaceName)
+	{
+		byte[][] names = this.batchInterfaces;
+		if (null == names)
+		{ return -1; }
+		for (int i = 0; i < names.length; i++)
+		{
+			byte[] name = names[i];
+			int j = 0;
+			while (j < 16 && j < ifaceName.length() 
+					&& name[j] == (byte)ifaceName.charAt(j))
+			{ j++; }
+			if (j == ifaceName.length() && (16 == j || 0 == name[j]))
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	private int getBatchIndex(byte[] data, int offset)
+	{
+		byte[][] names = this.batchInterfaces;
+		for (int i = 0; i < names.length; i++)
+		{
+			int j = 0;
+			while (j < 16 && names[i][j] == data[offset + j])
+			{ j++; }
+			if (16 == j)
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	/**
+	 * Build a VNS_PACKET command.
+	 * @param command buffer to build the command in, at least
+	 *        {@link #HEADER_LENGTH} bytes longer than the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return length of the command
+	 */
+	public static int encodePacket(byte[] command, String ifaceName,
+			byte[] frame, int offset, int length)
+	{
+		putHeader(command, 0, ifaceName, length);
+		System.arraycopy(frame, offset, command, HEADER_LENGTH, length);
+		return HEADER_LENGTH + length;
+	}
+
+	/**
+	 * @return the length of a command in a buffer, from its first field
+	 */
+	public static int getLength(byte[] command)
+	{ return getInt(command, 0); }
+	
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	private static void putHeader(byte[] buf, int offset, String ifaceName,
+			int frameLength)
+	{
+		int len = HEADER_LENGTH + frameLength;
+		buf[offset] = (byte)(len >>> 24);
+		buf[offset + 1] = (byte)(len >>> 16);
+		buf[offset + 2] = (byte)(len >>> 8);
+		buf[offset + 3] = (byte)len;
+		buf[offset + 4] = 0;
+		buf[offset + 5] = 0;
+		buf[offset + 6] = 0;
+		buf[offset + 7] = (byte)Command.VNS_PACKET;
+		for (int i = 0; i < 16; i++)
+		{
+			buf[offset + 8 + i] = (i < ifaceName.length()) 
+					? (byte)ifaceName.charAt(i) : 0;
+		}
+	}
+
+	/**
+	 * Write all pending commands to the server.
+	 * @return false if writing to the server has failed, otherwise true
+	 */
+	public boolean flush()
+	{
+		this.lock.lock();
+		try
+		{
+			this.endSegment();
+			if (0 == this.segmentCount || this.failed)
+			{
+				this.reset();
+				return !this.failed;
+			}
+
+			try
+			{
+				int first = 0;
+				while (first < this.segmentCount)
+				{
+					this.channel.write(this.segments, first,
+							this.segmentCount - first);
+					while (first < this.segmentCount
+							&& !this.segments[first].hasRemaining())
+					{ first++; }
+				}
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error writing packet");
+				this.failed = true;
+			}
+			this.reset();
+			return !this.failed;
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+
+	/**
+	 * Stop writing, discarding any pending commands, e.g. once the
+	 * connection has been lost; the flusher thread, if any, then stops.
+	 */
+	public void close()
+	{
+		this.lock.lock();
+		try
+		{
+			this.failed = true;
+			this.reset();
+			LockSupport.unpark(this.flusher);
+		}
+		finally
+		{ this.lock.unlock(); }
+	}
+
+	/**
+	 * Note the time if a command is about to be added to an empty writer,
+	 * and wake the flusher, which waits without a timeout while there is 
+	 * nothing to write.
+	 */
+	private void startPending()
+	{
+		if (0 == this.segmentCount && this.buffer.position() == 0)
+		{
+			this.oldestPending = System.nanoTime();
+			LockSupport.unpark(this.flusher);
+		}
+	}
+
+	/**
+	 * Add whatever has been put in the buffer since the last segment ended
+	 * as a segment of its own.
+	 */
+	private void endSegment()
+	{
+		int end = this.buffer.position();
+		if (end == this.segmentStart)
+		{ return; }
+		ByteBuffer segment = this.buffer.duplicate();
+		segment.position(this.segmentStart);
+		segment.limit(end);
+		this.segments[this.segmentCount++] = segment;
+		this.segmentStart = end;
+	}
+
+	private void reset()
+	{
+		for (int i = 0; i < this.segmentCount; i++)
+		{ this.segments[i] = null; }
+		this.segmentCount = 0;
+		this.buffer.clear();
+		this.segmentStart = 0;
+		this.batchStart = -1;
+	}
+
+	/**
+	 * Write pending commands once the oldest has waited longer than the
+	 * flush delay; runs on the flusher thread. While nothing is pending the
+	 * thread parks until {@link #startPending()} wakes it, so an idle writer
+	 * costs no wakeups.
+	 */
+	private void flushPeriodically()
+	{
+		// Time (in nanoseconds) until the oldest pending command is due, or
+		// 0 if nothing is pending
+		long wait = 0;
+		while (!this.failed)
+		{
+			if (wait > 0)
+			{ LockSupport.parkNanos(this, wait); }
+			else
+			{ LockSupport.park(this); }
+			this.lock.lock();
+			try
+			{
+				wait = 0;
+				boolean pending = (this.segmentCount > 0)
+						|| (this.buffer.position() > 0);
+				if (pending)
+				{
+					wait = this.oldestPending + this.flushDelay 
+							- System.nanoTime();
+					if (wait <= 0)
+					{
+						this.flush();
+						wait = 0;
+					}
+				}
+			}
+			finally
+			{ this.lock.unlock(); }
+		}
+	}
+}
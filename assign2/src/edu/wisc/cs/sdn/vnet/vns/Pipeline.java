@@ -0,0 +1,262 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import net.floodlightcontroller.packet.PacketPool;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.SpscRing;
+import edu.wisc.cs.sdn.vnet.WaitStrategy;
+
+/**
+ * Runs the device as a pipeline of threads, so socket I/O does not add to
+ * the time taken to forward each packet: the thread that reads from the
+ * server only splits the stream into commands, one or more worker threads
+ * parse the packets and pass them to the device, and a writer thread sends
+ * whatever the workers produce. Each worker is connected to the reader and
+ * to the writer by its own single-producer, single-consumer ring.
+ *
+ * Received commands are copied out of the receive buffer into pooled
+ * buffers, which the packets keep until the device releases them. Commands
+ * sent by a worker are built in pooled buffers as well, which the writer
+ * returns to the pool once it has copied them into its write buffer. Each
+ * stage releases buffers it did not take, so they make their way back to
+ * the stage that takes them through the packet pool's shared pool.
+ * Frames are assigned to workers by the device's hash of the flow they
+ * belong to, so the frames of a flow are handled in order.
+ *
+ * Only the workers run in parallel. The reader thread, the writer thread
+ * and the connection's CommandWriter, whose lock every sending thread 
+ * takes, are each shared by all workers, so adding workers stops helping 
+ * once any one of them is saturated.
+ */
+public class Pipeline
+{
+	/** Number of worker threads; 0 handles packets on the reading thread */
+	public static final int WORKERS =
+			Integer.getInteger("vnet.pipeline.workers", 0);
+
+	/** Commands each ring holds */
+	public static final int CAPACITY =
+			Integer.getInteger("vnet.pipeline.capacity", 1024);
+
+	/** How threads wait for full or empty rings */
+	public static final WaitStrategy WAIT = WaitStrategy.parse(
+			System.getProperty("vnet.pipeline.wait"), WaitStrategy.PARK);
+
+	private final VNSComm vnsComm;
+	private final Device device;
+	private final WaitStrategy waitStrategy;
+	private final Worker[] workers;
+	private final Thread writerThread;
+
+	/** Worker, if any, running on each thread */
+	private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+
+	/** Whether the reader may still add commands to the workers' rings */
+	private volatile boolean reading;
+
+	/** Number of workers that have not yet stopped */
+	private volatile int running;
+
+	/**
+	 * Creates a pipeline; its threads do not run until it is started.
+	 * @param vnsComm connection to the server
+	 * @param workers number of worker threads
+	 * @param capacity commands each ring holds
+	 * @param waitStrategy how threads wait for full or empty rings
+	 */
+	public Pipeline(VNSComm vnsComm, int workers, int capacity,
+			WaitStrategy waitStrategy)
+	{
+		this.vnsComm = vnsComm;
+		this.device = vnsComm.getDevice();
+		this.waitStrategy = waitStrategy;
+		this.workers = new Worker[Math.max(1, workers)];
+		for (int i = 0; i < this.workers.length; i++)
+		{ this.workers[i] = new Worker(i, capacity); }
+		this.writerThread = new Thread(new Runnable() {
+			public void run() { write(); }
+		}, "Pipeline-writer");
+	}
+
+	/**
+	 * Start the worker and writer threads, and pass received packets to them
+	 * from now on.
+	 */
+	public void start()
+	{
+		this.reading = true;
+		this.running = this.workers.length;
+		for (Worker worker : this.workers)
+		{ worker.thread.start(); }
+		this.writerThread.start();
+		this.vnsComm.setPipeline(this);
+	}
+
+	/**
+	 * Stop the pipeline once every command already received has been
+	 * handled, and every command sent has been written; called by the reader
+	 * once the connection has closed.
+	 */
+	public void stop()
+	{
+		this.reading = false;
+		try
+		{
+			for (Worker worker : this.workers)
+			{ worker.thread.join(); }
+			this.writerThread.join();
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.vnsComm.setPipeline(null);
+	}
+
+	/**
+	 * Pass a received VNS_PACKET command to a worker; called by the reader.
+	 * @param data buffer holding the command
+	 * @param offset offset of the command in the buffer
+	 * @param length length of the command
+	 */
+	void dispatch(byte[] data, int offset, int length)
+	{
+		byte[] command = PacketPool.obtainBuffer(length);
+		System.arraycopy(data, offset, command, 0, length);
+		this.workers[this.shard(command, length)].inbound.put(command);
+	}
+
+	/**
+	 * Pass a frame received without a command of its own, e.g. in a 
+	 * VNS_PACKET_BATCH command, to a worker as a VNS_PACKET command; called
+	 * by the reader.
+	 * @param ifaceName name of the interface on which the frame was received
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 */
+	void dispatch(String ifaceName, byte[] frame, int offset, int length)
+	{
+		byte[] command = PacketPool.obtainBuffer(
+				CommandWriter.HEADER_LENGTH + length);
+		int commandLength = CommandWriter.encodePacket(command, ifaceName, 
+				frame, offset, length);
+		this.workers[this.shard(command, commandLength)].inbound.put(command);
+	}
+
+	/**
+	 * Send a frame from a worker thread through the writer.
+	 * @return false if the calling thread is not a worker, in which case the
+	 *         frame should be written directly
+	 */
+	boolean send(String ifaceName, byte[] frame, int offset, int length)
+	{
+		Worker worker = this.currentWorker.get();
+		if (null == worker)
+		{ return false; }
+		byte[] command = PacketPool.obtainBuffer(
+				CommandWriter.HEADER_LENGTH + length);
+		CommandWriter.encodePacket(command, ifaceName, frame, offset, length);
+		worker.outbound.put(command);
+		return true;
+	}
+
+	/**
+	 * Choose the worker for a command, from the flow of the frame it carries.
+	 */
+	private int shard(byte[] command, int length)
+	{
+		if (1 == this.workers.length || length < CommandWriter.HEADER_LENGTH)
+		{ return 0; }
+		int hash = this.device.getFlowHash(command, CommandWriter.HEADER_LENGTH,
+				length - CommandWriter.HEADER_LENGTH);
+		return Math.floorMod(hash, this.workers.length);
+	}
+
+	/**
+	 * Copy commands from the workers' rings into the write buffer, and write
+	 * them to the server whenever the rings run dry; runs on the writer thread.
+	 */
+	private void write()
+	{
+		int tries = 0;
+		while (true)
+		{
+			boolean found = false;
+			// The connection, and so the writer, is replaced on reconnecting
+			CommandWriter writer = this.vnsComm.getWriter();
+			for (Worker worker : this.workers)
+			{
+				byte[] command;
+				while ((command = worker.outbound.poll()) != null)
+				{
+					writer.writeCommand(command,
+							CommandWriter.getLength(command));
+					PacketPool.releaseBuffer(command);
+					found = true;
+				}
+			}
+
+			if (found)
+			{
+				tries = 0;
+				continue;
+			}
+			writer.flush();
+			// Workers add their last commands before they stop running
+			if (0 == this.running && this.allOutboundEmpty())
+			{ return; }
+			this.waitStrategy.idle(tries++);
+		}
+	}
+
+	private boolean allOutboundEmpty()
+	{
+		for (Worker worker : this.workers)
+		{
+			if (!worker.outbound.isEmpty())
+			{ return false; }
+		}
+		return true;
+	}
+
+	private synchronized void workerStopped()
+	{ this.running--; }
+
+	/**
+	 * A worker thread, with the ring it receives commands on and the ring it
+	 * sends commands on.
+	 */
+	private class Worker implements Runnable
+	{
+		final SpscRing<byte[]> inbound;
+		final SpscRing<byte[]> outbound;
+		final Thread thread;
+
+		Worker(int index, int capacity)
+		{
+			this.inbound = new SpscRing<byte[]>(capacity, waitStrategy);
+			this.outbound = new SpscRing<byte[]>(capacity, waitStrategy);
+			this.thread = new Thread(this, "Pipeline-worker-" + index);
+		}
+
+		public void run()
+		{
+			currentWorker.set(this);
+			int tries = 0;
+			while (true)
+			{
+				byte[] command = this.inbound.poll();
+				if (null == command)
+				{
+					if (!reading && this.inbound.isEmpty())
+					{ break; }
+					waitStrategy.idle(tries++);
+					continue;
+				}
+				tries = 0;
+				vnsComm.handlePacketCommand(command, 0,
+						CommandWriter.getLength(command), true);
+			}
+			workerStopped();
+		}
+	}
+}
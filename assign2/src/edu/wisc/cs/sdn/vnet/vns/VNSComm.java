@@ -1,81 +1,283 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.PacketPool;
+import net.floodlightcontroller.packet.ParseStatus;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Longest command the device offers to accept from the server; the
+	 *  default fits a VNS_PACKET carrying any frame up to 64KB */
+	private static final int MAX_COMMAND_LENGTH = 
+			Integer.getInteger("vnet.vns.maxcommand", 1 << 17);
+	
+	/** Initial size of the receive buffer, which holds many commands; it 
+	 *  grows when a longer command arrives */
+	private static final int RECEIVE_BUFFER_SIZE = 1 << 16;
+	
+	/** Whether to offer the server any optional features; servers that 
+	 *  predate them do not accept the longer VNS_OPEN that offers them */
+	private static final boolean OFFER_CAPABILITIES = 
+			!"false".equals(System.getProperty("vnet.vns.capabilities"));
+	
+	/** Whether to offer the server VNS_PACKET_BATCH */
+	private static final boolean OFFER_BATCHING = 
+			!"false".equals(System.getProperty("vnet.vns.batch"));
+	
+	/** Whether to reconnect when the connection to the server is lost */
+	private static final boolean RECONNECT = 
+			!"false".equals(System.getProperty("vnet.vns.reconnect"));
+	
+	/** Time (in milliseconds) before the first attempt to reconnect, which
+	 *  doubles after each failed attempt up to the maximum */
+	private static final long RECONNECT_MIN_DELAY = 100;
+	private static final long RECONNECT_MAX_DELAY = 
+			Long.getLong("vnet.vns.reconnect.maxdelay", 10000);
+	
+	/** Size of the buffer in which outgoing commands are coalesced */
+	private static final int SEND_BUFFER_SIZE = 1 << 16;
+	
+	/** Socket buffer sizes (in bytes), or 0 for the system default */
+	private static final int SOCKET_SEND_BUFFER = 
+			Integer.getInteger("vnet.vns.sndbuf", 0);
+	private static final int SOCKET_RECEIVE_BUFFER = 
+			Integer.getInteger("vnet.vns.rcvbuf", 0);
+	
+	/** Longest time (in microseconds) an outgoing command waits to be 
+	 *  written, when it is not sent while handling received commands */
+	private static final long FLUSH_DELAY = 
+			Long.getLong("vnet.vns.flush", 100);
+	
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Coalesces outgoing commands; replaced when reconnecting */
+	private volatile CommandWriter writer;
+	
+	/** Where the server is: a host and port, or a Unix domain socket path */
+	private String server;
+	private short port;
+	private String socketPath;
+	
+	/** Whether the server ended the session with VNS_CLOSE, in which case
+	 *  there is no point reconnecting */
+	private volatile boolean closedByServer;
+	
+	/** Threads that handle received packets, if not the reading thread */
+	private volatile Pipeline pipeline;
+	
+	/** Bytes read from the server; the commands from consumed up to the
+	 *  buffer's position have not been handled yet. The buffer comes from
+	 *  the packet pool whenever it grows, and keeps its size from then on */
+	private ByteBuffer receiveBuffer;
+	private int consumed;
+	
+	/** Longest command the server may send */
+	private int maxCommandLength;
+	
+	/** The device's interfaces, in the order the server listed them, which
+	 *  is how VNS_PACKET_BATCH commands refer to them */
+	private volatile Iface[] ifacesByIndex;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+		this.consumed = 0;
+		this.maxCommandLength = CommandCapabilities.LEGACY_COMMAND_LENGTH;
+		this.ifacesByIndex = new Iface[0];
 	}
 	
 	public boolean connectToServer(short port, String server)
 	{
+		this.server = server;
+		this.port = port;
+		this.socketPath = null;
+		
 		// Grab server address from name
 		InetAddress addr;
 		try 
 		{ addr = InetAddress.getByName(server); }
 		catch (UnknownHostException e) 
 		{
-			e.printStackTrace();
+			System.err.println("Error: unknown host " + server);
 			return false;
 		}
 		
-		// Create socket and attempt to connect to the server
+		// Create socket and attempt to connect to the server; outgoing
+		// commands are coalesced here, so Nagle's algorithm only adds delay
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open();
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			this.setBufferSizes();
+			channel.connect(new InetSocketAddress(addr, port & 0xffff));
+		}
 		catch (IOException e) 
 		{
-			e.printStackTrace();
+			System.err.println("Error: cannot connect to " + server + ":" 
+					+ port + ": " + e.getMessage());
 			return false;
 		}
+		return this.open();
+	}
+	
+	/**
+	 * Connect to a server running on the same host through a Unix domain 
+	 * socket, which skips the TCP/IP stack that loopback connections go 
+	 * through.
+	 * @param socketPath path of the socket the server listens on
+	 * @return true if the connection was opened, otherwise false
+	 */
+	public boolean connectToServer(String socketPath)
+	{
+		this.socketPath = socketPath;
 		
-		// Send VNS_OPEN message to server
-		CommandOpen cmdOpen = new CommandOpen();
-		cmdOpen.mVirtualHostId = this.device.getHost();
-		byte[] buf = cmdOpen.serialize();
-		
-		try
+		try 
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-			outStream.flush();
+			channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			this.setBufferSizes();
+			channel.connect(UnixDomainSocketAddress.of(socketPath));
 		}
-		catch(IOException e)
+		catch (IOException | UnsupportedOperationException e) 
 		{
-			e.printStackTrace();
+			System.err.println("Error: cannot connect to " + socketPath + ": " 
+					+ e.getMessage());
 			return false;
 		}
+		return this.open();
+	}
+	
+	/**
+	 * Connect to the server again after the connection has been lost, 
+	 * waiting longer after each failed attempt, and repeat the VNS_OPEN and
+	 * VNS_HW_INFO exchange. The device keeps its interfaces and everything
+	 * it has learned; interfaces are updated to match what the server
+	 * reports.
+	 * @return true once reconnected; false if reconnecting is disabled, the
+	 *         server closed the session, or the thread was interrupted
+	 */
+	public boolean reconnect()
+	{
+		if (!RECONNECT || this.closedByServer)
+		{ return false; }
+		this.disconnect();
+		
+		long delay = RECONNECT_MIN_DELAY;
+		for (int attempt = 1; ; attempt++)
+		{
+			System.err.println(String.format(
+					"Reconnecting to server in %d ms (attempt %d)", delay, 
+					attempt));
+			try 
+			{ Thread.sleep(delay); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			
+			boolean connected = (this.socketPath != null) 
+					? this.connectToServer(this.socketPath)
+					: this.connectToServer(this.port, this.server);
+			if (connected && this.readFromServerExpect(Command.VNS_HW_INFO))
+			{
+				System.out.println("Reconnected to server");
+				return true;
+			}
+			this.disconnect();
+			delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+		}
+	}
+	
+	/**
+	 * Close the connection, discarding any commands not yet written or 
+	 * handled.
+	 */
+	private void disconnect()
+	{
+		if (this.writer != null)
+		{ this.writer.close(); }
+		if (this.channel != null)
+		{
+			try { this.channel.close(); } catch (IOException e) { }
+		}
+		this.receiveBuffer.clear();
+		this.consumed = 0;
+	}
+	
+	private void setBufferSizes() throws IOException
+	{
+		if (SOCKET_SEND_BUFFER > 0)
+		{ channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_SEND_BUFFER); }
+		if (SOCKET_RECEIVE_BUFFER > 0)
+		{ channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER); }
+	}
+	
+	/**
+	 * Start a session on a newly connected channel.
+	 */
+	private boolean open()
+	{
+		// Send VNS_OPEN message to server, offering to accept long commands
+		// and to batch frames; the server may use them as soon as it has 
+		// received the offer
+		CommandOpen cmdOpen = new CommandOpen();
+		cmdOpen.mVirtualHostId = this.device.getHost();
+		this.maxCommandLength = CommandCapabilities.LEGACY_COMMAND_LENGTH;
+		if (OFFER_CAPABILITIES)
+		{
+			cmdOpen.mCapabilities = CommandCapabilities.CAP_LARGE_COMMANDS;
+			if (OFFER_BATCHING)
+			{ cmdOpen.mCapabilities |= CommandCapabilities.CAP_PACKET_BATCH; }
+			cmdOpen.mMaxCommandLength = MAX_COMMAND_LENGTH;
+			this.maxCommandLength = Math.max(this.maxCommandLength,
+					MAX_COMMAND_LENGTH);
+		}
+		if (!this.writeToServer(cmdOpen.serialize()))
+		{ return false; }
 		
-		return true; 
+		// Only now may other threads send on the new connection, so nothing
+		// reaches the server ahead of VNS_OPEN; until then they still see
+		// the old, closed writer, which drops what they send
+		this.writer = new CommandWriter(channel, SEND_BUFFER_SIZE, FLUSH_DELAY);
+		return true;
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
+		List<Iface> ifaces = new ArrayList<Iface>();
 		for (CommandHwEntry hwEntry : cmdHwInfo.mHwInfo)
 		{
 			switch(hwEntry.mKey)
 			{
 			case CommandHwEntry.HW_INTERFACE:
-				lastIface = this.device.addInterface(
-						new String(hwEntry.value).trim());
+				// Keep an interface the device already has, e.g. after
+				// reconnecting, since routes and queues refer to it
+				String name = new String(hwEntry.value).trim();
+				lastIface = this.device.getInterface(name);
+				if (null == lastIface)
+				{ lastIface = this.device.addInterface(name); }
+				ifaces.add(lastIface);
 				break;
 			case CommandHwEntry.HW_MASK:
 				lastIface.setSubnetMask(ByteBuffer.wrap(hwEntry.value).getInt());
@@ -86,10 +288,24 @@ public class VNSComm
 			case CommandHwEntry.HW_ETHER:
 				lastIface.setMacAddress(new MACAddress(hwEntry.value));
 				break;
+			case CommandHwEntry.HW_MTU:
+				int mtu = ByteBuffer.wrap(hwEntry.value).getInt();
+				if (mtu > 0)
+				{ lastIface.setMtu(mtu); }
+				break;
 			default:
 				System.out.println(String.format(" %d", hwEntry.mKey));
 			}
 		}
+		this.ifacesByIndex = ifaces.toArray(new Iface[ifaces.size()]);
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			if (!ifaces.contains(iface))
+			{
+				System.err.println("Warning: interface " + iface.getName()
+						+ " is no longer reported by the server");
+			}
+		}
 		
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
@@ -106,112 +322,172 @@ public class VNSComm
 	public boolean readFromServer()
 	{ return this.readFromServerExpect(0); }
 	
+	/**
+	 * Read from the server until at least one command is available, then
+	 * handle every complete command that has been received. Commands are
+	 * handled in place in the receive buffer, which is only reused once
+	 * they have all been handled.
+	 * @param expectedCmd the command expected first, or 0 for any command
+	 * @return false if the connection failed or the first command was not
+	 *         the one expected, otherwise true
+	 */
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		int len;
+		while (0 == (len = this.nextCommandLength()))
 		{
-			e.printStackTrace();
-			return false;
+			if (!this.fillReceiveBuffer())
+			{ return false; }
 		}
 		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		byte[] data = this.receiveBuffer.array();
+		while (len > 0)
 		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+			int start = this.consumed;
+			this.consumed += len;
+			
+			// Make sure the command is what we expected if we were expecting something
+			int command = ByteBuffer.wrap(data, start + 4, 4).getInt();
+			if (expectedCmd != 0 && command != expectedCmd)
 			{
-				e.printStackTrace();
-				return false;
+				if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
+				{
+					System.err.println(String.format(
+							"Error: expected command %d but got %d", expectedCmd,
+							command));
+					return false;
+				}
 			}
+			expectedCmd = 0;
+			
+			this.handleCommand(command, data, start, len);
+			len = this.nextCommandLength();
 		}
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		// Send whatever the device sent while handling the burst, unless
+		// the pipeline's writer thread does so
+		if (null == this.pipeline && !this.writer.flush())
+		{ return false; }
+		return (len == 0);
+	}
+	
+	/**
+	 * @return the length of the next command in the receive buffer, 0 if it
+	 *         has not been completely received, or -1 if its length is
+	 *         invalid, in which case the connection is closed
+	 */
+	private int nextCommandLength()
+	{
+		int available = this.receiveBuffer.position() - this.consumed;
+		if (available < 4)
+		{ return 0; }
 		
-		if (len > 10000 || len < 0)
+		int len = this.receiveBuffer.getInt(this.consumed);
+		if (len > this.maxCommandLength || len < 8)
 		{
 			System.err.println(String.format(
 					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
+			try { this.channel.close(); } catch (IOException e) { }
+			return -1;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
+		return (available < len) ? 0 : len;
+	}
+	
+	/**
+	 * Read as many bytes as the server has sent, first moving any partly
+	 * received command to the start of the buffer if space is short, or 
+	 * to a larger buffer if the command is longer than the buffer.
+	 * @return false if the connection failed or was closed
+	 */
+	private boolean fillReceiveBuffer()
+	{
+		ByteBuffer buf = this.receiveBuffer;
+		int pending = buf.position() - this.consumed;
+		if (0 == pending)
 		{
-			try 
+			buf.clear();
+			this.consumed = 0;
+		}
+		else
+		{
+			// Make room for the whole command, once its length is known
+			// (nextCommandLength has checked it), and for a short command
+			// otherwise
+			int needed = CommandCapabilities.LEGACY_COMMAND_LENGTH;
+			if (pending >= 4)
+			{ needed = Math.max(needed, buf.getInt(this.consumed)); }
+			if (needed > buf.capacity())
 			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+				byte[] larger = PacketPool.obtainBuffer(
+						Math.max(needed, 2 * buf.capacity()));
+				System.arraycopy(buf.array(), this.consumed, larger, 0, pending);
+				PacketPool.releaseBuffer(buf.array());
+				buf = ByteBuffer.wrap(larger);
+				buf.position(pending);
+				this.receiveBuffer = buf;
+				this.consumed = 0;
+			}
+			else if (buf.capacity() - this.consumed < needed)
 			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
+				// Move the partly received command to the start of the buffer
+				System.arraycopy(buf.array(), this.consumed, buf.array(), 0,
+						pending);
+				buf.position(pending);
+				this.consumed = 0;
 			}
 		}
 		
-		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
-		if (expectedCmd != 0 && command != expectedCmd)
+		try 
 		{
-			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
+			if (this.channel.read(buf) < 0)
 			{
-				System.err.println(String.format(
-						"Error: expected command %d but got %d", expectedCmd,
-						command));
+				System.err.println("Error: connection to server closed");
 				return false;
 			}
 		}
-		
-		buf.position(0);
+		catch (IOException e)
+		{
+			System.err.println("Error: failed reading from server: " 
+					+ e.getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	private void handleCommand(int command, byte[] data, int offset, int len)
+	{
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			Pipeline pipeline = this.pipeline;
+			if (pipeline != null)
+			{ pipeline.dispatch(data, offset, len); }
+			else
+			{ this.handlePacketCommand(data, offset, len, false); }
+			break;
 			
-			// Log packet
-			if (this.device.getLogFile() != null)
-			{ this.device.getLogFile().dump(cmdPkt.etherPacket); }
+		case Command.VNS_PACKET_BATCH:
+			this.handleBatchCommand(data, offset, len);
+			break;
 			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+		case Command.VNS_CAPABILITIES:
+			CommandCapabilities cmdCaps = new CommandCapabilities();
+			cmdCaps.deserialize(ByteBuffer.wrap(data, offset, len));
+			this.handleCapabilities(cmdCaps);
 			break;
 			
 		case Command.VNS_CLOSE:
+			this.closedByServer = true;
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
-			cmdClose.deserialize(buf);
+			cmdClose.deserialize(ByteBuffer.wrap(data, offset, len));
 			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
-			return true;
+			break;
 			
 		case Command.VNS_HW_INFO:
 			CommandHwInfo cmdHwInfo = new CommandHwInfo();
-			cmdHwInfo.deserialize(buf);
+			cmdHwInfo.deserialize(ByteBuffer.wrap(data, offset, len));
 			this.handleHwInfo(cmdHwInfo);
 			break;
 		
@@ -219,10 +495,152 @@ public class VNSComm
 			System.err.println(String.format("unknown command: %d", command));
 			break;
 		}
-
-		return true;
 	}
 	
+	/**
+	 * Parse a VNS_PACKET command and pass its packet to the device.
+	 * @param data buffer holding the command
+	 * @param offset offset of the command in the buffer
+	 * @param len length of the command
+	 * @param pooled true if the buffer came from the packet pool, and holds
+	 *        only this command, so the packet can keep it until released
+	 */
+	void handlePacketCommand(byte[] data, int offset, int len, boolean pooled)
+	{
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.deserialize(ByteBuffer.wrap(data, offset, len));
+		Iface iface = this.device.getInterface(cmdPkt.mInterfaceName);
+		if (cmdPkt.status != ParseStatus.OK)
+		{
+			this.drop(cmdPkt.status, iface);
+			if (pooled)
+			{ PacketPool.releaseBuffer(data); }
+			return;
+		}
+		
+		// A pooled buffer now belongs to the packet and is returned to the
+		// pool when the device releases the packet; otherwise the packet 
+		// refers to the receive buffer rather than a copy, which is why
+		// Device.handlePacket must not keep it without cloning it
+		if (pooled)
+		{ cmdPkt.etherPacket.setReceiveBuffer(data); }
+		this.deliver(cmdPkt.etherPacket, iface);
+	}
+	
+	/**
+	 * Pass each frame in a VNS_PACKET_BATCH command to the device, or to
+	 * the pipeline's workers. As with single packets, the frames refer to
+	 * the receive buffer, so they must be cloned to be kept once they have
+	 * been handled.
+	 * @param data buffer holding the command
+	 * @param offset offset of the command in the buffer
+	 * @param len length of the command
+	 */
+	private void handleBatchCommand(byte[] data, int offset, int len)
+	{
+		Iface[] ifaces = this.ifacesByIndex;
+		Pipeline pipeline = this.pipeline;
+		int end = offset + len;
+		int entry = offset + 8;
+		while (entry + CommandPacketBatch.ENTRY_HEADER_LENGTH <= end)
+		{
+			int index = CommandPacketBatch.getInterfaceIndex(data, entry);
+			int frameLength = CommandPacketBatch.getFrameLength(data, entry);
+			int frame = entry + CommandPacketBatch.ENTRY_HEADER_LENGTH;
+			Iface iface = (index < ifaces.length) ? ifaces[index] : null;
+			if (frame + frameLength > end)
+			{
+				this.drop(ParseStatus.TRUNCATED, iface);
+				return;
+			}
+			entry = frame + frameLength;
+			if (null == iface)
+			{
+				this.drop(ParseStatus.UNKNOWN_INTERFACE, null);
+				continue;
+			}
+			
+			if (pipeline != null)
+			{
+				pipeline.dispatch(iface.getName(), data, frame, frameLength);
+				continue;
+			}
+			ParseStatus status = Ethernet.validate(data, frame, frameLength);
+			if (status != ParseStatus.OK)
+			{
+				this.drop(status, iface);
+				continue;
+			}
+			Ethernet etherPacket = PacketPool.obtain(Ethernet.class);
+			etherPacket.deserialize(data, frame, frameLength);
+			this.deliver(etherPacket, iface);
+		}
+	}
+	
+	/**
+	 * Start using the optional features the server has agreed to.
+	 */
+	private void handleCapabilities(CommandCapabilities cmdCaps)
+	{
+		if ((cmdCaps.mCapabilities & CommandCapabilities.CAP_LARGE_COMMANDS) != 0)
+		{
+			this.writer.setMaxCommandLength(Math.max(
+					CommandCapabilities.LEGACY_COMMAND_LENGTH, 
+					cmdCaps.mMaxCommandLength));
+		}
+		if ((cmdCaps.mCapabilities & CommandCapabilities.CAP_PACKET_BATCH) != 0)
+		{
+			Iface[] ifaces = this.ifacesByIndex;
+			String[] names = new String[ifaces.length];
+			for (int i = 0; i < ifaces.length; i++)
+			{ names[i] = ifaces[i].getName(); }
+			this.writer.enableBatching(names, cmdCaps.mMaxCommandLength);
+		}
+	}
+	
+	/**
+	 * Count and log a received frame that is dropped before it reaches the
+	 * device.
+	 */
+	private void drop(ParseStatus status, Iface iface)
+	{
+		this.device.countDrop(status);
+		if (PacketLog.INFO)
+		{ PacketLog.dropped(null, iface, status.name()); }
+	}
+	
+	/**
+	 * Log a received packet, and pass it to the device.
+	 */
+	private void deliver(Ethernet etherPacket, Iface iface)
+	{
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(etherPacket); }
+		
+		// Pass to device, student's code should take over here
+		this.device.handlePacket(etherPacket, iface);
+	}
+	
+	/**
+	 * @return the device connected to the server
+	 */
+	Device getDevice()
+	{ return this.device; }
+	
+	/**
+	 * @return the writer that coalesces outgoing commands
+	 */
+	CommandWriter getWriter()
+	{ return this.writer; }
+	
+	/**
+	 * @param pipeline threads to handle received packets, or null to handle
+	 *        them on the reading thread
+	 */
+	void setPipeline(Pipeline pipeline)
+	{ this.pipeline = pipeline; }
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -244,12 +662,6 @@ public class VNSComm
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
@@ -260,11 +672,73 @@ public class VNSComm
 		if (this.device.getLogFile() != null)
 		{ this.device.getLogFile().dump(etherPacket); }
 		
+		// Copy an unmodified frame straight from the bytes it was received
+		// in; a serialized frame is new, so it is handed over uncopied
+		byte[] frame;
+		int offset;
+		int length;
+		boolean handOver;
+		if (etherPacket.hasWireBytes())
+		{
+			frame = etherPacket.getWireBuffer();
+			offset = etherPacket.getWireOffset();
+			length = etherPacket.getWireLength();
+			handOver = false;
+		}
+		else
+		{
+			frame = etherPacket.serialize();
+			offset = 0;
+			length = frame.length;
+			handOver = true;
+		}
+		
+		Pipeline pipeline = this.pipeline;
+		if (pipeline != null 
+				&& pipeline.send(ifaceName, frame, offset, length))
+		{ return true; }
+		return this.writer.write(ifaceName, frame, offset, length, handOver);
+	}
+	
+	/**
+	 * Send a frame that is already encoded, e.g. by a template, without
+	 * building a packet object for it. The frame is copied, so the buffer 
+	 * may be reused as soon as this returns.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was sent, otherwise false
+	 */
+	public boolean sendPacket(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		
+		Pipeline pipeline = this.pipeline;
+		if (pipeline != null 
+				&& pipeline.send(ifaceName, frame, offset, length))
+		{ return true; }
+		return this.writer.write(ifaceName, frame, offset, length, false);
+	}
+	
+	/**
+	 * Write whatever has been sent but not yet written to the server, e.g.
+	 * when a thread other than the reader has finished sending a burst.
+	 * @return false if writing to the server has failed, otherwise true
+	 */
+	public boolean flush()
+	{ return this.writer.flush(); }
+	
+	private boolean writeToServer(byte[] buf)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(buf);
 		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-			outStream.flush();
+			while (bb.hasRemaining())
+			{ this.channel.write(bb); }
 		}
 		catch(IOException e)
 		{
@@ -44,10 +44,41 @@ public class ARP extends BasePacket {
     protected byte[] targetHardwareAddress;
     protected byte[] targetProtocolAddress;
 
+    public ARP() {
+    }
+
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public ARP(ARP other) {
+        super(other);
+        this.hardwareType = other.hardwareType;
+        this.protocolType = other.protocolType;
+        this.hardwareAddressLength = other.hardwareAddressLength;
+        this.protocolAddressLength = other.protocolAddressLength;
+        this.opCode = other.opCode;
+        this.senderHardwareAddress = copy(other.senderHardwareAddress);
+        this.senderProtocolAddress = copy(other.senderProtocolAddress);
+        this.targetHardwareAddress = copy(other.targetHardwareAddress);
+        this.targetProtocolAddress = copy(other.targetProtocolAddress);
+    }
+
+    private static byte[] copy(byte[] address) {
+        return (address == null) ? null : address.clone();
+    }
+
+    @Override
+    public Object clone() {
+        return new ARP(this);
+    }
+
     /**
      * @return the hardwareType
      */
     public short getHardwareType() {
+        checkReleased();
         return hardwareType;
     }
 
@@ -55,6 +86,7 @@ public class ARP extends BasePacket {
      * @param hardwareType the hardwareType to set
      */
     public ARP setHardwareType(short hardwareType) {
+        invalidate();
         this.hardwareType = hardwareType;
         return this;
     }
@@ -63,6 +95,7 @@ public class ARP extends BasePacket {
      * @return the protocolType
      */
     public short getProtocolType() {
+        checkReleased();
         return protocolType;
     }
 
@@ -70,6 +103,7 @@ public class ARP extends BasePacket {
      * @param protocolType the protocolType to set
      */
     public ARP setProtocolType(short protocolType) {
+        invalidate();
         this.protocolType = protocolType;
         return this;
     }
@@ -78,6 +112,7 @@ public class ARP extends BasePacket {
      * @return the hardwareAddressLength
      */
     public byte getHardwareAddressLength() {
+        checkReleased();
         return hardwareAddressLength;
     }
 
@@ -85,6 +120,7 @@ public class ARP extends BasePacket {
      * @param hardwareAddressLength the hardwareAddressLength to set
      */
     public ARP setHardwareAddressLength(byte hardwareAddressLength) {
+        invalidate();
         this.hardwareAddressLength = hardwareAddressLength;
         return this;
     }
@@ -93,6 +129,7 @@ public class ARP extends BasePacket {
      * @return the protocolAddressLength
      */
     public byte getProtocolAddressLength() {
+        checkReleased();
         return protocolAddressLength;
     }
 
@@ -100,6 +137,7 @@ public class ARP extends BasePacket {
      * @param protocolAddressLength the protocolAddressLength to set
      */
     public ARP setProtocolAddressLength(byte protocolAddressLength) {
+        invalidate();
         this.protocolAddressLength = protocolAddressLength;
         return this;
     }
@@ -108,6 +146,7 @@ public class ARP extends BasePacket {
      * @return the opCode
      */
     public short getOpCode() {
+        checkReleased();
         return opCode;
     }
 
@@ -115,6 +154,7 @@ public class ARP extends BasePacket {
      * @param opCode the opCode to set
      */
     public ARP setOpCode(short opCode) {
+        invalidate();
         this.opCode = opCode;
         return this;
     }
@@ -123,6 +163,7 @@ public class ARP extends BasePacket {
      * @return the senderHardwareAddress
      */
     public byte[] getSenderHardwareAddress() {
+        checkReleased();
         return senderHardwareAddress;
     }
 
@@ -130,6 +171,7 @@ public class ARP extends BasePacket {
      * @param senderHardwareAddress the senderHardwareAddress to set
      */
     public ARP setSenderHardwareAddress(byte[] senderHardwareAddress) {
+        invalidate();
         this.senderHardwareAddress = senderHardwareAddress;
         return this;
     }
@@ -138,6 +180,7 @@ public class ARP extends BasePacket {
      * @return the senderProtocolAddress
      */
     public byte[] getSenderProtocolAddress() {
+        checkReleased();
         return senderProtocolAddress;
     }
 
@@ -145,11 +188,13 @@ public class ARP extends BasePacket {
      * @param senderProtocolAddress the senderProtocolAddress to set
      */
     public ARP setSenderProtocolAddress(byte[] senderProtocolAddress) {
+        invalidate();
         this.senderProtocolAddress = senderProtocolAddress;
         return this;
     }
     
     public ARP setSenderProtocolAddress(int address) {
+        invalidate();
         this.senderProtocolAddress = ByteBuffer.allocate(4).putInt(address).array();
         return this;
     }
@@ -158,6 +203,7 @@ public class ARP extends BasePacket {
      * @return the targetHardwareAddress
      */
     public byte[] getTargetHardwareAddress() {
+        checkReleased();
         return targetHardwareAddress;
     }
 
@@ -165,6 +211,7 @@ public class ARP extends BasePacket {
      * @param targetHardwareAddress the targetHardwareAddress to set
      */
     public ARP setTargetHardwareAddress(byte[] targetHardwareAddress) {
+        invalidate();
         this.targetHardwareAddress = targetHardwareAddress;
         return this;
     }
@@ -173,6 +220,7 @@ public class ARP extends BasePacket {
      * @return the targetProtocolAddress
      */
     public byte[] getTargetProtocolAddress() {
+        checkReleased();
         return targetProtocolAddress;
     }
 
@@ -197,17 +245,23 @@ public class ARP extends BasePacket {
      * @param targetProtocolAddress the targetProtocolAddress to set
      */
     public ARP setTargetProtocolAddress(byte[] targetProtocolAddress) {
+        invalidate();
         this.targetProtocolAddress = targetProtocolAddress;
         return this;
     }
     
     public ARP setTargetProtocolAddress(int address) {
+        invalidate();
         this.targetProtocolAddress = ByteBuffer.allocate(4).putInt(address).array();
         return this;
     }
 
     @Override
     public byte[] serialize() {
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
         int length = 8 + (2 * (0xff & this.hardwareAddressLength))
                 + (2 * (0xff & this.protocolAddressLength));
         byte[] data = new byte[length];
@@ -224,6 +278,22 @@ public class ARP extends BasePacket {
         return data;
     }
 
+    /**
+     * Checks, without throwing, that a packet can be deserialized.
+     * @param data the buffer holding the packet
+     * @param offset offset of the packet in the buffer
+     * @param length length of the packet
+     * @return {@link ParseStatus#OK} or the reason the packet is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        if (length < 8)
+            return ParseStatus.TRUNCATED;
+        int addressesLength = 2 * ((data[offset + 4] & 0xff) + (data[offset + 5] & 0xff));
+        if (8 + addressesLength > length)
+            return ParseStatus.TRUNCATED;
+        return ParseStatus.OK;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -240,6 +310,7 @@ public class ARP extends BasePacket {
         bb.get(this.targetHardwareAddress, 0, this.targetHardwareAddress.length);
         this.targetProtocolAddress = new byte[0xff & this.protocolAddressLength];
         bb.get(this.targetProtocolAddress, 0, this.targetProtocolAddress.length);
+        this.setWireBytes(data, offset, bb.position() - offset);
         return this;
     }
 
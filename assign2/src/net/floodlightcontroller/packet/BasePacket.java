@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
 *
@@ -25,12 +27,39 @@ package net.floodlightcontroller.packet;
 public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
+    protected boolean released;
+
+    /** The bytes this packet was deserialized from, including its payload;
+     *  null once any field of this packet or its payload changes, so that
+     *  serialize() only re-encodes the layers that were modified */
+    protected byte[] wireData;
+    protected int wireOffset;
+    protected int wireLength;
+
+    public BasePacket() {
+    }
+
+    /**
+     * Copies the parent reference and deep copies the payload of another
+     * packet. Used by the copy constructors of subclasses to implement
+     * {@link #clone()} without serializing.
+     * @param other the packet to copy
+     */
+    protected BasePacket(BasePacket other) {
+        other.checkReleased();
+        this.parent = other.parent;
+        if (other.payload != null) {
+            this.payload = (IPacket) other.payload.clone();
+            this.payload.setParent(this);
+        }
+    }
 
     /**
      * @return the parent
      */
     @Override
     public IPacket getParent() {
+        checkReleased();
         return parent;
     }
 
@@ -39,6 +68,7 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket setParent(IPacket parent) {
+        checkReleased();
         this.parent = parent;
         return this;
     }
@@ -48,6 +78,7 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        checkReleased();
         return payload;
     }
 
@@ -56,12 +87,149 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket setPayload(IPacket payload) {
+        checkReleased();
+        invalidate();
         this.payload = payload;
         return this;
     }
     
+    /**
+     * @return true if this packet is unchanged since it was deserialized, so
+     *         {@link #getWireBuffer()} holds its serialized form
+     */
+    public boolean hasWireBytes() {
+        return this.wireData != null;
+    }
+
+    /**
+     * @return the buffer this packet was deserialized from, valid only while
+     *         {@link #hasWireBytes()} is true; must not be modified
+     */
+    public byte[] getWireBuffer() {
+        return this.wireData;
+    }
+
+    /**
+     * @return offset of this packet in {@link #getWireBuffer()}
+     */
+    public int getWireOffset() {
+        return this.wireOffset;
+    }
+
+    /**
+     * @return length of this packet, including its payload, in
+     *         {@link #getWireBuffer()}
+     */
+    public int getWireLength() {
+        return this.wireLength;
+    }
+
+    /**
+     * Remembers the bytes this packet was deserialized from; called at the
+     * end of a subclass's {@code deserialize}.
+     */
+    protected void setWireBytes(byte[] data, int offset, int length) {
+        this.wireData = data;
+        this.wireOffset = offset;
+        this.wireLength = length;
+    }
+
+    /**
+     * Discards the cached wire bytes of this packet and of the packets that
+     * encapsulate it; called by every method that changes a field. Callers
+     * that modify an array returned by a getter (e.g. options) must call
+     * {@link #resetChecksum()} or a setter afterwards.
+     */
+    protected void invalidate() {
+        this.wireData = null;
+        if (this.parent instanceof BasePacket)
+            ((BasePacket) this.parent).invalidate();
+    }
+
+    /**
+     * @return a copy of the cached wire bytes, or null if this packet was
+     *         modified or not deserialized
+     */
+    protected byte[] getCachedBytes() {
+        if (this.wireData == null)
+            return null;
+        return Arrays.copyOfRange(this.wireData, this.wireOffset,
+                this.wireOffset + this.wireLength);
+    }
+
+    /**
+     * Serializes the payload, if any, for a subclass's {@code serialize}. A
+     * {@link Data} payload, or one that is unchanged since it was
+     * deserialized, is not serialized; {@link #writePayload} copies it
+     * straight into the subclass's buffer instead.
+     * @return the serialized payload; null if there is no payload or it is
+     *         copied by {@link #writePayload}
+     */
+    protected byte[] serializePayload() {
+        if (payload == null)
+            return null;
+        payload.setParent(this);
+        if (payload instanceof Data || hasWireBytes(payload))
+            return null;
+        return payload.serialize();
+    }
+
+    private static boolean hasWireBytes(IPacket packet) {
+        return (packet instanceof BasePacket) && ((BasePacket) packet).wireData != null;
+    }
+
+    /**
+     * @param payloadData the result of {@link #serializePayload()}
+     * @return the length of the serialized payload
+     */
+    protected int getPayloadLength(byte[] payloadData) {
+        if (payloadData != null)
+            return payloadData.length;
+        if (payload instanceof Data)
+            return ((Data) payload).getLength();
+        if (hasWireBytes(payload))
+            return ((BasePacket) payload).wireLength;
+        return 0;
+    }
+
+    /**
+     * Writes the payload at the current position of a buffer wrapping the
+     * subclass's serialized bytes, and advances the position past it.
+     * @param bb the buffer to write to; must be backed by an array
+     * @param payloadData the result of {@link #serializePayload()}
+     */
+    protected void writePayload(ByteBuffer bb, byte[] payloadData) {
+        if (payloadData != null) {
+            bb.put(payloadData);
+        } else if (payload instanceof Data) {
+            Data data = (Data) payload;
+            data.writeTo(bb.array(), bb.arrayOffset() + bb.position());
+            bb.position(bb.position() + data.getLength());
+        } else if (hasWireBytes(payload)) {
+            BasePacket packet = (BasePacket) payload;
+            bb.put(packet.wireData, packet.wireOffset, packet.wireLength);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (this.payload != null)
+            this.payload.release();
+        PacketPool.release(this);
+    }
+
+    /**
+     * Fails if this packet was released and the pool is in debug mode.
+     */
+    protected void checkReleased() {
+        if (PacketPool.DEBUG && this.released)
+            throw new IllegalStateException("Use of released packet: "
+                    + this.getClass().getSimpleName());
+    }
+
     @Override
     public void resetChecksum() {
+        invalidate();
         if (this.parent != null)
             this.parent.resetChecksum();
     }
@@ -97,11 +265,16 @@ public abstract class BasePacket implements IPacket {
         return true;
     }
     
+    /**
+     * Clones by serializing and reparsing; subclasses override this with a
+     * copy constructor, so it is only a fallback for packet classes that
+     * don't.
+     */
     @Override
     public Object clone() {
         IPacket pkt;
         try {
-            pkt = this.getClass().newInstance();
+            pkt = this.getClass().getDeclaredConstructor().newInstance();
         } catch (Exception e) {
             throw new RuntimeException("Could not clone packet");
         }
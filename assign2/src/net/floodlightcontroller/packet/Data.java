@@ -26,6 +26,21 @@ import java.util.Arrays;
 public class Data extends BasePacket {
     protected byte[] data;
 
+    /** Range of {@code data} holding the payload; a deserialized payload is
+     *  a slice of the buffer it was parsed from rather than a copy */
+    protected int offset;
+    protected int length;
+
+    /** True if {@code data} may also be referenced by a clone or belongs to
+     *  a larger buffer, in which case it is copied before being handed out
+     *  for modification */
+    protected boolean shared;
+
+    /** True if {@code data} is a buffer this payload does not own, such as
+     *  the receive buffer it was deserialized from, which its owner may
+     *  reuse once the packet has been handled */
+    protected boolean borrowed;
+
     /**
      * 
      */
@@ -36,13 +51,67 @@ public class Data extends BasePacket {
      * @param data
      */
     public Data(byte[] data) {
+        this.setData(data);
+    }
+
+    /**
+     * Creates a payload that is a slice of a buffer, without copying it. The
+     * buffer must not be modified while the payload is in use.
+     * @param data the buffer holding the payload
+     * @param offset offset of the first byte of the payload
+     * @param length length of the payload
+     */
+    public Data(byte[] data, int offset, int length) {
         this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.shared = true;
+        this.borrowed = true;
     }
 
     /**
-     * @return the data
+     * Creates a copy of another payload. A payload borrowed from a buffer it
+     * does not own is copied, so the clone stays valid after the buffer is
+     * reused; otherwise the clone shares the bytes until either copy hands
+     * them out through {@link #getData()}.
+     * @param other the payload to copy
+     */
+    public Data(Data other) {
+        super(other);
+        if (other.data != null && other.borrowed) {
+            this.data = Arrays.copyOfRange(other.data, other.offset,
+                    other.offset + other.length);
+            this.length = other.length;
+        } else {
+            this.data = other.data;
+            this.offset = other.offset;
+            this.length = other.length;
+            this.shared = true;
+            other.shared = true;
+        }
+    }
+
+    @Override
+    public Object clone() {
+        return new Data(this);
+    }
+
+    /**
+     * @return the data; a private copy if the bytes were shared with a clone
+     *         or are a slice of a larger buffer, since the caller may modify
+     *         them
      */
     public byte[] getData() {
+        checkReleased();
+        // the caller may modify the bytes, so encapsulating packets can no
+        // longer reuse the bytes they were deserialized from
+        invalidate();
+        if (shared && data != null) {
+            data = Arrays.copyOfRange(data, offset, offset + length);
+            offset = 0;
+            shared = false;
+            borrowed = false;
+        }
         return data;
     }
 
@@ -50,17 +119,52 @@ public class Data extends BasePacket {
      * @param data the data to set
      */
     public Data setData(byte[] data) {
+        invalidate();
         this.data = data;
+        this.offset = 0;
+        this.length = (data == null) ? 0 : data.length;
+        this.shared = false;
+        this.borrowed = false;
         return this;
     }
 
+    /**
+     * @return the length of the payload in bytes
+     */
+    public int getLength() {
+        checkReleased();
+        return this.length;
+    }
+
+    /**
+     * Copies the payload into a buffer, e.g. while serializing the packet
+     * that encapsulates it.
+     * @param buffer the buffer to write to
+     * @param offset the offset at which to write the first byte
+     */
+    public void writeTo(byte[] buffer, int offset) {
+        if (this.data != null)
+            System.arraycopy(this.data, this.offset, buffer, offset, this.length);
+    }
+
+    private boolean isSlice() {
+        return offset != 0 || length != data.length;
+    }
+
     public byte[] serialize() {
+        checkReleased();
+        if (data != null && isSlice())
+            return Arrays.copyOfRange(data, offset, offset + length);
         return this.data;
     }
 
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
-        this.data = Arrays.copyOfRange(data, offset, data.length);
+        this.data = data;
+        this.offset = offset;
+        this.length = Math.max(0, Math.min(length, data.length - offset));
+        this.shared = true;
+        this.borrowed = true;
         return this;
     }
 
@@ -71,7 +175,13 @@ public class Data extends BasePacket {
     public int hashCode() {
         final int prime = 1571;
         int result = super.hashCode();
-        result = prime * result + Arrays.hashCode(data);
+        int dataHash = 0;
+        if (data != null) {
+            dataHash = 1;
+            for (int i = offset; i < offset + length; i++)
+                dataHash = 31 * dataHash + data[i];
+        }
+        result = prime * result + dataHash;
         return result;
     }
 
@@ -87,7 +197,10 @@ public class Data extends BasePacket {
         if (!(obj instanceof Data))
             return false;
         Data other = (Data) obj;
-        if (!Arrays.equals(data, other.data))
+        if (data == null || other.data == null)
+            return data == other.data;
+        if (!Arrays.equals(data, offset, offset + length,
+                other.data, other.offset, other.offset + other.length))
             return false;
         return true;
     }
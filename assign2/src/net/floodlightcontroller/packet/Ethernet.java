@@ -29,7 +29,6 @@ import org.openflow.util.HexString;
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class Ethernet extends BasePacket {
-    private static String HEXES = "0123456789ABCDEF";
     public static final short TYPE_ARP = 0x0806;
     public static final short TYPE_RARP = (short) 0x8035;
     public static final short TYPE_IPv4 = 0x0800;
@@ -52,6 +51,7 @@ public class Ethernet extends BasePacket {
     protected short vlanID;
     protected short etherType;
     protected boolean pad = false;
+    protected byte[] receiveBuffer;
 
     /**
      * By default, set Ethernet to untagged
@@ -60,11 +60,32 @@ public class Ethernet extends BasePacket {
         super();
         this.vlanID = VLAN_UNTAGGED;
     }
+
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public Ethernet(Ethernet other) {
+        super(other);
+        this.destinationMACAddress = other.destinationMACAddress;
+        this.sourceMACAddress = other.sourceMACAddress;
+        this.priorityCode = other.priorityCode;
+        this.vlanID = other.vlanID;
+        this.etherType = other.etherType;
+        this.pad = other.pad;
+    }
+
+    @Override
+    public Object clone() {
+        return new Ethernet(this);
+    }
     
     /**
      * @return the destination MAC as a byte array
      */
     public byte[] getDestinationMACAddress() {
+        checkReleased();
         return destinationMACAddress.toBytes();
     }
     
@@ -72,6 +93,7 @@ public class Ethernet extends BasePacket {
      * @return the destination MAC
      */
     public MACAddress getDestinationMAC() {
+        checkReleased();
         return destinationMACAddress;
     }
 
@@ -79,14 +101,25 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(byte[] destinationMACAddress) {
+        invalidate();
         this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set
+     */
+    public Ethernet setDestinationMAC(MACAddress destinationMACAddress) {
+        invalidate();
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(String destinationMACAddress) {
+        invalidate();
         this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
         return this;
     }
@@ -95,6 +128,7 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress as a byte array
      */
     public byte[] getSourceMACAddress() {
+        checkReleased();
         return sourceMACAddress.toBytes();
     }
     
@@ -102,6 +136,7 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress
      */
     public MACAddress getSourceMAC() {
+        checkReleased();
         return sourceMACAddress;
     }
 
@@ -109,14 +144,25 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(byte[] sourceMACAddress) {
+        invalidate();
         this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set
+     */
+    public Ethernet setSourceMAC(MACAddress sourceMACAddress) {
+        invalidate();
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(String sourceMACAddress) {
+        invalidate();
         this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
         return this;
     }
@@ -125,6 +171,7 @@ public class Ethernet extends BasePacket {
      * @return the priorityCode
      */
     public byte getPriorityCode() {
+        checkReleased();
         return priorityCode;
     }
 
@@ -132,6 +179,7 @@ public class Ethernet extends BasePacket {
      * @param priorityCode the priorityCode to set
      */
     public Ethernet setPriorityCode(byte priorityCode) {
+        invalidate();
         this.priorityCode = priorityCode;
         return this;
     }
@@ -140,6 +188,7 @@ public class Ethernet extends BasePacket {
      * @return the vlanID
      */
     public short getVlanID() {
+        checkReleased();
         return vlanID;
     }
 
@@ -147,6 +196,7 @@ public class Ethernet extends BasePacket {
      * @param vlanID the vlanID to set
      */
     public Ethernet setVlanID(short vlanID) {
+        invalidate();
         this.vlanID = vlanID;
         return this;
     }
@@ -155,6 +205,7 @@ public class Ethernet extends BasePacket {
      * @return the etherType
      */
     public short getEtherType() {
+        checkReleased();
         return etherType;
     }
 
@@ -162,6 +213,7 @@ public class Ethernet extends BasePacket {
      * @param etherType the etherType to set
      */
     public Ethernet setEtherType(short etherType) {
+        invalidate();
         this.etherType = etherType;
         return this;
     }
@@ -170,6 +222,7 @@ public class Ethernet extends BasePacket {
      * @return True if the Ethernet frame is broadcast, false otherwise
      */
     public boolean isBroadcast() {
+        checkReleased();
         assert(destinationMACAddress.length() == 6);
         return destinationMACAddress.isBroadcast();
     }
@@ -178,6 +231,7 @@ public class Ethernet extends BasePacket {
      * @return True is the Ethernet frame is multicast, False otherwise
      */
     public boolean isMulticast() {
+        checkReleased();
         return destinationMACAddress.isMulticast();
     }
     /**
@@ -185,6 +239,7 @@ public class Ethernet extends BasePacket {
      * @return the pad
      */
     public boolean isPad() {
+        checkReleased();
         return pad;
     }
 
@@ -193,54 +248,106 @@ public class Ethernet extends BasePacket {
      * @param pad the pad to set
      */
     public Ethernet setPad(boolean pad) {
+        invalidate();
         this.pad = pad;
         return this;
     }
 
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
+    /**
+     * @return the pooled buffer this packet was received in, if any
+     */
+    public byte[] getReceiveBuffer() {
+        checkReleased();
+        return receiveBuffer;
+    }
+
+    /**
+     * @param receiveBuffer a pooled buffer this packet was received in, which
+     *        is returned to the {@link PacketPool} when the packet is released
+     */
+    public Ethernet setReceiveBuffer(byte[] receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+        return this;
+    }
+
+    @Override
+    public void release() {
+        if (this.receiveBuffer != null) {
+            PacketPool.releaseBuffer(this.receiveBuffer);
+            this.receiveBuffer = null;
         }
+        super.release();
+    }
+
+    public byte[] serialize() {
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
+        byte[] payloadData = serializePayload();
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          getPayloadLength(payloadData);
         if (pad && length < 60) {
             length = 60;
         }
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        destinationMACAddress.writeTo(data, 0);
+        sourceMACAddress.writeTo(data, MACAddress.MAC_ADDRESS_LENGTH);
+        bb.position(2 * MACAddress.MAC_ADDRESS_LENGTH);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        writePayload(bb, payloadData);
         if (pad) {
             Arrays.fill(data, bb.position(), data.length, (byte)0x0);
         }
         return data;
     }
 
+    /**
+     * Checks, without throwing, that a frame and the headers it encapsulates
+     * can be deserialized.
+     * @param data the buffer holding the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     * @return {@link ParseStatus#OK} or the reason the frame is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        int headerLength = 14;
+        if (length < headerLength || offset + length > data.length)
+            return ParseStatus.TRUNCATED;
+        short etherType = (short) (((data[offset + 12] & 0xff) << 8)
+                | (data[offset + 13] & 0xff));
+        if (etherType == (short) 0x8100) {
+            headerLength = 18;
+            if (length < headerLength)
+                return ParseStatus.TRUNCATED;
+            etherType = (short) (((data[offset + 16] & 0xff) << 8)
+                    | (data[offset + 17] & 0xff));
+        }
+        switch (etherType) {
+        case TYPE_IPv4:
+            return IPv4.validate(data, offset + headerLength, length - headerLength);
+        case TYPE_ARP:
+        case TYPE_RARP:
+            return ARP.validate(data, offset + headerLength, length - headerLength);
+        default:
+            return ParseStatus.OK;
+        }
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        this.destinationMACAddress = MACAddress.valueOf(data, bb.position());
+        this.sourceMACAddress = MACAddress.valueOf(data,
+                bb.position() + MACAddress.MAC_ADDRESS_LENGTH);
+        bb.position(bb.position() + 2 * MACAddress.MAC_ADDRESS_LENGTH);
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -249,23 +356,27 @@ public class Ethernet extends BasePacket {
             this.vlanID = (short) (tci & 0x0fff);
             etherType = bb.getShort();
         } else {
+            this.priorityCode = 0;
             this.vlanID = VLAN_UNTAGGED;
         }
         this.etherType = etherType;
+        // Received frames already carry whatever padding they had
+        this.pad = false;
         
         IPacket payload;
         if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
             Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
             try {
-                payload = clazz.newInstance();
+                payload = PacketPool.obtain(clazz);
             } catch (Exception e) {
                 throw new RuntimeException("Error parsing payload for Ethernet packet", e);
             }
         } else {
-            payload = new Data();
+            payload = PacketPool.obtain(Data.class);
         }
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
+        this.setWireBytes(data, offset, length);
         return this;
     }
 
@@ -275,12 +386,14 @@ public class Ethernet extends BasePacket {
      * @return True if macAddress is a valid MAC, False otherwise
      */
     public static boolean isMACAddress(String macAddress) {
-        String[] macBytes = macAddress.split(":");
-        if (macBytes.length != 6)
+        if (macAddress.length() != 3 * MACAddress.MAC_ADDRESS_LENGTH - 1)
             return false;
-        for (int i = 0; i < 6; ++i) {
-            if (HEXES.indexOf(macBytes[i].toUpperCase().charAt(0)) == -1 || 
-                HEXES.indexOf(macBytes[i].toUpperCase().charAt(1)) == -1) {
+        for (int i = 0; i < macAddress.length(); ++i) {
+            char c = macAddress.charAt(i);
+            if ((i % 3) == 2) {
+                if (c != ':')
+                    return false;
+            } else if (Character.digit(c, 16) < 0) {
                 return false;
             }
         }
@@ -366,7 +479,7 @@ public class Ethernet extends BasePacket {
     @Override
     public String toString() {
 
-        StringBuffer sb = new StringBuffer("\n");
+        StringBuilder sb = new StringBuilder("\n");
 
         IPacket pkt = (IPacket) this.getPayload();
 
@@ -386,17 +499,19 @@ public class Ethernet extends BasePacket {
         sb.append("\ndl_vlan_pcp: ");
         sb.append(this.getPriorityCode());
         sb.append("\ndl_src: ");
-        sb.append(HexString.toHexString(this.getSourceMACAddress()));
+        HexString.appendHexString(sb, this.sourceMACAddress.toLong(),
+                MACAddress.MAC_ADDRESS_LENGTH);
         sb.append("\ndl_dst: ");
-        sb.append(HexString.toHexString(this.getDestinationMACAddress()));
+        HexString.appendHexString(sb, this.destinationMACAddress.toLong(),
+                MACAddress.MAC_ADDRESS_LENGTH);
 
 
         if (pkt instanceof ARP) {
             ARP p = (ARP) pkt;
             sb.append("\nnw_src: ");
-            sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getSenderProtocolAddress())));
+            IPv4.appendIPv4Address(sb, IPv4.toIPv4Address(p.getSenderProtocolAddress()));
             sb.append("\nnw_dst: ");
-            sb.append(IPv4.fromIPv4Address(IPv4.toIPv4Address(p.getTargetProtocolAddress())));
+            IPv4.appendIPv4Address(sb, IPv4.toIPv4Address(p.getTargetProtocolAddress()));
         }
         else if (pkt instanceof ICMP) {
             ICMP icmp = (ICMP) pkt;
@@ -408,9 +523,9 @@ public class Ethernet extends BasePacket {
         else if (pkt instanceof IPv4) {
             IPv4 p = (IPv4) pkt;
             sb.append("\nnw_src: ");
-            sb.append(IPv4.fromIPv4Address(p.getSourceAddress()));
+            IPv4.appendIPv4Address(sb, p.getSourceAddress());
             sb.append("\nnw_dst: ");
-            sb.append(IPv4.fromIPv4Address(p.getDestinationAddress()));
+            IPv4.appendIPv4Address(sb, p.getDestinationAddress());
             sb.append("\nnw_tos: ");
             sb.append(p.getDiffServ());
             sb.append("\nnw_proto: ");
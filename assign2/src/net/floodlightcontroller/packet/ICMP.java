@@ -24,16 +24,43 @@ import java.nio.ByteBuffer;
  * @author shudong.zhou@bigswitch.com
  */
 public class ICMP extends BasePacket {
+    public static final byte TYPE_ECHO_REPLY = 0x0;
+    public static final byte TYPE_DESTINATION_UNREACHABLE = 0x3;
+    public static final byte TYPE_SOURCE_QUENCH = 0x4;
+    public static final byte TYPE_REDIRECT = 0x5;
     public static final byte TYPE_ECHO_REQUEST = 0x8;
+    public static final byte TYPE_TIME_EXCEEDED = 0xb;
+    public static final byte TYPE_PARAMETER_PROBLEM = 0xc;
 
     protected byte icmpType;
     protected byte icmpCode;
     protected short checksum;
 
+    public ICMP() {
+    }
+
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public ICMP(ICMP other) {
+        super(other);
+        this.icmpType = other.icmpType;
+        this.icmpCode = other.icmpCode;
+        this.checksum = other.checksum;
+    }
+
+    @Override
+    public Object clone() {
+        return new ICMP(this);
+    }
+
     /**
      * @return the icmpType
      */
     public byte getIcmpType() {
+        checkReleased();
         return icmpType;
     }
 
@@ -41,6 +68,7 @@ public class ICMP extends BasePacket {
      * @param icmpType to set
      */
     public ICMP setIcmpType(byte icmpType) {
+        invalidate();
         this.icmpType = icmpType;
         return this;
     }
@@ -49,6 +77,7 @@ public class ICMP extends BasePacket {
      * @return the icmp code
      */
     public byte getIcmpCode() {
+        checkReleased();
         return icmpCode;
     }
 
@@ -56,6 +85,7 @@ public class ICMP extends BasePacket {
      * @param icmpCode code to set
      */
     public ICMP setIcmpCode(byte icmpCode) {
+        invalidate();
         this.icmpCode = icmpCode;
         return this;
     }
@@ -64,6 +94,7 @@ public class ICMP extends BasePacket {
      * @return the checksum
      */
     public short getChecksum() {
+        checkReleased();
         return checksum;
     }
 
@@ -71,6 +102,7 @@ public class ICMP extends BasePacket {
      * @param checksum the checksum to set
      */
     public ICMP setChecksum(short checksum) {
+        invalidate();
         this.checksum = checksum;
         return this;
     }
@@ -82,13 +114,12 @@ public class ICMP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
+        byte[] payloadData = serializePayload();
+        int length = 4 + getPayloadLength(payloadData);
 
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -96,28 +127,14 @@ public class ICMP extends BasePacket {
         bb.put(this.icmpType);
         bb.put(this.icmpCode);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        writePayload(bb, payloadData);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-
-            for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
-            }
-
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = InternetChecksum.checksum(data, 0, length, 0);
             bb.putShort(2, this.checksum);
         }
         return data;
@@ -157,6 +174,19 @@ public class ICMP extends BasePacket {
         return true;
     }
 
+    /**
+     * Checks, without throwing, that a message can be deserialized.
+     * @param data the buffer holding the message
+     * @param offset offset of the message in the buffer
+     * @param length length of the message
+     * @return {@link ParseStatus#OK} or the reason the message is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        if (length < 4)
+            return ParseStatus.TRUNCATED;
+        return ParseStatus.OK;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -164,9 +194,10 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
+        this.payload = PacketPool.obtain(Data.class);
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
+        this.setWireBytes(data, offset, length);
         return this;
     }
 }
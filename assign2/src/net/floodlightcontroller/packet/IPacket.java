@@ -69,6 +69,12 @@ public interface IPacket {
      */
     public IPacket deserialize(byte[] data, int offset, int length);
     
+    /**
+     * Release this packet and all payloads back to the {@link PacketPool}.
+     * Neither may be used after they are released.
+     */
+    public void release();
+
     /** Clone this packet and its payload packet but not its parent. 
      * 
      * @return
@@ -23,7 +23,9 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,6 +36,8 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
+    public static final byte FLAG_DONT_FRAGMENT = 0x2;
+    public static final byte FLAG_MORE_FRAGMENTS = 0x1;
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
     static {
@@ -68,10 +72,39 @@ public class IPv4 extends BasePacket {
         isTruncated = false;
     }
 
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public IPv4(IPv4 other) {
+        super(other);
+        this.version = other.version;
+        this.headerLength = other.headerLength;
+        this.diffServ = other.diffServ;
+        this.totalLength = other.totalLength;
+        this.identification = other.identification;
+        this.flags = other.flags;
+        this.fragmentOffset = other.fragmentOffset;
+        this.ttl = other.ttl;
+        this.protocol = other.protocol;
+        this.checksum = other.checksum;
+        this.sourceAddress = other.sourceAddress;
+        this.destinationAddress = other.destinationAddress;
+        this.options = (other.options == null) ? null : other.options.clone();
+        this.isTruncated = other.isTruncated;
+    }
+
+    @Override
+    public Object clone() {
+        return new IPv4(this);
+    }
+
     /**
      * @return the version
      */
     public byte getVersion() {
+        checkReleased();
         return version;
     }
 
@@ -79,6 +112,7 @@ public class IPv4 extends BasePacket {
      * @param version the version to set
      */
     public IPv4 setVersion(byte version) {
+        invalidate();
         this.version = version;
         return this;
     }
@@ -87,6 +121,7 @@ public class IPv4 extends BasePacket {
      * @return the headerLength
      */
     public byte getHeaderLength() {
+        checkReleased();
         return headerLength;
     }
 
@@ -94,6 +129,7 @@ public class IPv4 extends BasePacket {
      * @return the diffServ
      */
     public byte getDiffServ() {
+        checkReleased();
         return diffServ;
     }
 
@@ -101,6 +137,7 @@ public class IPv4 extends BasePacket {
      * @param diffServ the diffServ to set
      */
     public IPv4 setDiffServ(byte diffServ) {
+        invalidate();
         this.diffServ = diffServ;
         return this;
     }
@@ -109,6 +146,7 @@ public class IPv4 extends BasePacket {
      * @return the totalLength
      */
     public short getTotalLength() {
+        checkReleased();
         return totalLength;
     }
 
@@ -116,10 +154,12 @@ public class IPv4 extends BasePacket {
      * @return the identification
      */
     public short getIdentification() {
+        checkReleased();
         return identification;
     }
 
     public boolean isTruncated() {
+        checkReleased();
         return isTruncated;
     }
 
@@ -131,6 +171,7 @@ public class IPv4 extends BasePacket {
      * @param identification the identification to set
      */
     public IPv4 setIdentification(short identification) {
+        invalidate();
         this.identification = identification;
         return this;
     }
@@ -139,6 +180,7 @@ public class IPv4 extends BasePacket {
      * @return the flags
      */
     public byte getFlags() {
+        checkReleased();
         return flags;
     }
 
@@ -146,6 +188,7 @@ public class IPv4 extends BasePacket {
      * @param flags the flags to set
      */
     public IPv4 setFlags(byte flags) {
+        invalidate();
         this.flags = flags;
         return this;
     }
@@ -154,6 +197,7 @@ public class IPv4 extends BasePacket {
      * @return the fragmentOffset
      */
     public short getFragmentOffset() {
+        checkReleased();
         return fragmentOffset;
     }
 
@@ -161,6 +205,7 @@ public class IPv4 extends BasePacket {
      * @param fragmentOffset the fragmentOffset to set
      */
     public IPv4 setFragmentOffset(short fragmentOffset) {
+        invalidate();
         this.fragmentOffset = fragmentOffset;
         return this;
     }
@@ -169,6 +214,7 @@ public class IPv4 extends BasePacket {
      * @return the ttl
      */
     public byte getTtl() {
+        checkReleased();
         return ttl;
     }
 
@@ -176,14 +222,31 @@ public class IPv4 extends BasePacket {
      * @param ttl the ttl to set
      */
     public IPv4 setTtl(byte ttl) {
+        invalidate();
         this.ttl = ttl;
         return this;
     }
 
+    /**
+     * Decrements the ttl by one and incrementally updates the header checksum
+     * (RFC 1624), avoiding a recomputation over the whole header.
+     * @return the new ttl
+     */
+    public byte decrementTtl() {
+        invalidate();
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        if (this.checksum != 0)
+            this.checksum = InternetChecksum.update(this.checksum, oldWord, newWord);
+        return this.ttl;
+    }
+
     /**
      * @return the protocol
      */
     public byte getProtocol() {
+        checkReleased();
         return protocol;
     }
 
@@ -191,6 +254,7 @@ public class IPv4 extends BasePacket {
      * @param protocol the protocol to set
      */
     public IPv4 setProtocol(byte protocol) {
+        invalidate();
         this.protocol = protocol;
         return this;
     }
@@ -199,6 +263,7 @@ public class IPv4 extends BasePacket {
      * @return the checksum
      */
     public short getChecksum() {
+        checkReleased();
         return checksum;
     }
 
@@ -206,11 +271,13 @@ public class IPv4 extends BasePacket {
      * @param checksum the checksum to set
      */
     public IPv4 setChecksum(short checksum) {
+        invalidate();
         this.checksum = checksum;
         return this;
     }
     @Override
     public void resetChecksum() {
+        invalidate();
         this.checksum = 0;
         super.resetChecksum();
     }
@@ -219,6 +286,7 @@ public class IPv4 extends BasePacket {
      * @return the sourceAddress
      */
     public int getSourceAddress() {
+        checkReleased();
         return sourceAddress;
     }
 
@@ -226,6 +294,7 @@ public class IPv4 extends BasePacket {
      * @param sourceAddress the sourceAddress to set
      */
     public IPv4 setSourceAddress(int sourceAddress) {
+        invalidate();
         this.sourceAddress = sourceAddress;
         return this;
     }
@@ -234,14 +303,29 @@ public class IPv4 extends BasePacket {
      * @param sourceAddress the sourceAddress to set
      */
     public IPv4 setSourceAddress(String sourceAddress) {
+        invalidate();
         this.sourceAddress = IPv4.toIPv4Address(sourceAddress);
         return this;
     }
 
+    /**
+     * Rewrites the source address and incrementally updates the header
+     * checksum, as well as the TCP or UDP checksum covering the pseudo header.
+     * @param sourceAddress the new source address
+     */
+    public IPv4 rewriteSourceAddress(int sourceAddress) {
+        invalidate();
+        int oldAddress = this.sourceAddress;
+        this.sourceAddress = sourceAddress;
+        this.updateChecksums(oldAddress, sourceAddress);
+        return this;
+    }
+
     /**
      * @return the destinationAddress
      */
     public int getDestinationAddress() {
+        checkReleased();
         return destinationAddress;
     }
 
@@ -249,6 +333,7 @@ public class IPv4 extends BasePacket {
      * @param destinationAddress the destinationAddress to set
      */
     public IPv4 setDestinationAddress(int destinationAddress) {
+        invalidate();
         this.destinationAddress = destinationAddress;
         return this;
     }
@@ -257,14 +342,38 @@ public class IPv4 extends BasePacket {
      * @param destinationAddress the destinationAddress to set
      */
     public IPv4 setDestinationAddress(String destinationAddress) {
+        invalidate();
         this.destinationAddress = IPv4.toIPv4Address(destinationAddress);
         return this;
     }
 
+    /**
+     * Rewrites the destination address and incrementally updates the header
+     * checksum, as well as the TCP or UDP checksum covering the pseudo header.
+     * @param destinationAddress the new destination address
+     */
+    public IPv4 rewriteDestinationAddress(int destinationAddress) {
+        invalidate();
+        int oldAddress = this.destinationAddress;
+        this.destinationAddress = destinationAddress;
+        this.updateChecksums(oldAddress, destinationAddress);
+        return this;
+    }
+
+    private void updateChecksums(int oldAddress, int newAddress) {
+        if (this.checksum != 0)
+            this.checksum = InternetChecksum.update(this.checksum, oldAddress, newAddress);
+        if (this.payload instanceof TCP)
+            ((TCP) this.payload).updatePseudoHeaderAddress(oldAddress, newAddress);
+        else if (this.payload instanceof UDP)
+            ((UDP) this.payload).updatePseudoHeaderAddress(oldAddress, newAddress);
+    }
+
     /**
      * @return the options
      */
     public byte[] getOptions() {
+        checkReleased();
         return options;
     }
 
@@ -272,6 +381,7 @@ public class IPv4 extends BasePacket {
      * @param options the options to set
      */
     public IPv4 setOptions(byte[] options) {
+        invalidate();
         if (options != null && (options.length % 4) > 0)
             throw new IllegalArgumentException(
                     "Options length must be a multiple of 4");
@@ -287,19 +397,19 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
+        byte[] payloadData = serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
+        this.totalLength = (short) (this.headerLength * 4
+                + getPayloadLength(payloadData));
 
         byte[] data = new byte[this.totalLength];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -316,24 +426,69 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        writePayload(bb, payloadData);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = InternetChecksum.checksum(data, 0, this.headerLength * 4, 0);
             bb.putShort(10, this.checksum);
         }
         return data;
     }
 
+    /**
+     * Checks, without throwing, that a packet and the transport header it
+     * encapsulates can be deserialized. The header checksum is not checked.
+     * @param data the buffer holding the packet
+     * @param offset offset of the packet in the buffer
+     * @param length length of the packet, possibly including link-layer padding
+     * @return {@link ParseStatus#OK} or the reason the packet is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        if (length < 20)
+            return ParseStatus.TRUNCATED;
+        int headerLength = (data[offset] & 0xf) * 4;
+        if (headerLength < 20)
+            return ParseStatus.BAD_IHL;
+        if (headerLength > length)
+            return ParseStatus.TRUNCATED;
+        int totalLength = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (totalLength < headerLength)
+            return ParseStatus.BAD_LENGTH;
+        if (totalLength > length)
+            return ParseStatus.TRUNCATED;
+
+        // only the first fragment starts with the transport header
+        boolean fragment = (data[offset + 6] & 0x3f) != 0 || data[offset + 7] != 0;
+        if (fragment)
+            return ParseStatus.OK;
+        return validatePayload(data[offset + 9], data, offset + headerLength,
+                totalLength - headerLength);
+    }
+
+    /**
+     * Checks, without throwing, that the transport header of a datagram,
+     * e.g. one reassembled from fragments, can be deserialized.
+     * @param protocol the protocol of the datagram
+     * @param data the buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     * @return {@link ParseStatus#OK} or the reason the payload is malformed
+     */
+    public static ParseStatus validatePayload(byte protocol, byte[] data,
+            int offset, int length) {
+        switch (protocol) {
+        case PROTOCOL_TCP:
+            return TCP.validate(data, offset, length);
+        case PROTOCOL_UDP:
+            return UDP.validate(data, offset, length);
+        case PROTOCOL_ICMP:
+            return ICMP.validate(data, offset, length);
+        default:
+            return ParseStatus.OK;
+        }
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -358,20 +513,28 @@ public class IPv4 extends BasePacket {
             int optionsLength = (this.headerLength - 5) * 4;
             this.options = new byte[optionsLength];
             bb.get(this.options);
+        } else {
+            this.options = null;
         }
 
         IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
+        // only the first fragment starts with the transport header
+        if (IPv4.protocolClassMap.containsKey(this.protocol) && !this.isFragment()) {
             Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
             try {
-                payload = clazz.newInstance();
+                payload = PacketPool.obtain(clazz);
             } catch (Exception e) {
                 throw new RuntimeException("Error parsing payload for IPv4 packet", e);
             }
         } else {
-            payload = new Data();
+            payload = PacketPool.obtain(Data.class);
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
+        // leave out any link-layer padding after the end of the datagram
+        int payloadLength = bb.limit() - bb.position();
+        int datagramRemaining = (this.totalLength & 0xffff) - (bb.position() - offset);
+        if (datagramRemaining >= 0 && datagramRemaining < payloadLength)
+            payloadLength = datagramRemaining;
+        this.payload = payload.deserialize(data, bb.position(), payloadLength);
         this.payload.setParent(this);
 
         if (this.totalLength != length)
@@ -379,9 +542,149 @@ public class IPv4 extends BasePacket {
         else
             this.isTruncated = false;
 
+        this.setWireBytes(data, offset, bb.position() - offset + payloadLength);
         return this;
     }
 
+    /**
+     * Verifies the header checksum of a packet in a buffer, without
+     * deserializing it. The header must lie within the buffer, e.g. because
+     * {@link #validate(byte[], int, int)} accepted the packet.
+     * @param buf the buffer holding the packet
+     * @param off offset of the packet in the buffer
+     * @return true if the header checksum is correct
+     */
+    public static boolean verifyHeaderChecksum(byte[] buf, int off) {
+        int headerLength = (buf[off] & 0xf) * 4;
+        if (headerLength < 20)
+            return false;
+        // a correct header, checksum included, sums to all ones
+        return InternetChecksum.sum(buf, off, headerLength, 0) == 0xffff;
+    }
+
+    /**
+     * Verifies the header checksum of this packet. An unmodified packet is
+     * checked straight from the bytes it was received in; otherwise the sum
+     * is taken over the header fields, still without serializing.
+     * @return true if the header checksum is correct
+     */
+    public boolean verifyHeaderChecksum() {
+        if (this.wireData != null)
+            return verifyHeaderChecksum(this.wireData, this.wireOffset);
+
+        int optionsLength = (this.options == null) ? 0 : this.options.length;
+        int headerLength = (this.headerLength != 0) ? this.headerLength
+                : (5 + optionsLength / 4);
+        int sum = (((this.version & 0xf) << 12) | ((headerLength & 0xf) << 8)
+                        | (this.diffServ & 0xff))
+                + (this.totalLength & 0xffff)
+                + (this.identification & 0xffff)
+                + ((((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)) & 0xffff)
+                + (((this.ttl & 0xff) << 8) | (this.protocol & 0xff))
+                + (this.checksum & 0xffff)
+                + (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff)
+                + (this.destinationAddress >>> 16) + (this.destinationAddress & 0xffff);
+        if (optionsLength > 0)
+            sum = InternetChecksum.sum(this.options, 0, optionsLength, sum);
+        return InternetChecksum.fold(sum) == 0xffff;
+    }
+
+    /**
+     * @return true if this packet is a fragment of a larger datagram
+     */
+    public boolean isFragment() {
+        checkReleased();
+        return (this.flags & FLAG_MORE_FRAGMENTS) != 0 || this.fragmentOffset != 0;
+    }
+
+    /**
+     * Splits this packet into fragments that each fit within an MTU. Every
+     * fragment carries a copy of this packet's header fields, with options
+     * that lack the copied flag kept only in the first fragment. The caller
+     * is responsible for honoring the don't fragment flag.
+     * @param mtu maximum size, in bytes, of each fragment including its header
+     * @return the fragments, in order; just this packet if it already fits
+     */
+    public List<IPv4> fragment(int mtu) {
+        List<IPv4> fragments = new ArrayList<IPv4>();
+        byte[] payloadData = new byte[0];
+        if (this.payload != null) {
+            this.payload.setParent(this);
+            payloadData = this.payload.serialize();
+        }
+
+        int firstHeaderLength = 20 + ((this.options == null) ? 0 : this.options.length);
+        if (firstHeaderLength + payloadData.length <= mtu) {
+            fragments.add(this);
+            return fragments;
+        }
+
+        byte[] copiedOptions = copiedOptions(this.options);
+        int baseOffset = this.fragmentOffset * 8;
+        int offset = 0;
+        while (offset < payloadData.length) {
+            byte[] fragmentOptions = (offset == 0) ? this.options : copiedOptions;
+            int headerLength = 20 + ((fragmentOptions == null) ? 0 : fragmentOptions.length);
+            int dataLength = Math.min((mtu - headerLength) & ~7,
+                    payloadData.length - offset);
+            if (dataLength <= 0)
+                throw new IllegalArgumentException("MTU " + mtu
+                        + " is too small to fragment packet");
+            boolean last = (offset + dataLength == payloadData.length);
+
+            IPv4 fragment = new IPv4();
+            fragment.setDiffServ(this.diffServ);
+            fragment.setIdentification(this.identification);
+            fragment.setTtl(this.ttl);
+            fragment.setProtocol(this.protocol);
+            fragment.setSourceAddress(this.sourceAddress);
+            fragment.setDestinationAddress(this.destinationAddress);
+            fragment.setOptions(fragmentOptions);
+            fragment.setFlags((byte) ((this.flags & ~FLAG_MORE_FRAGMENTS)
+                    | ((last && (this.flags & FLAG_MORE_FRAGMENTS) == 0)
+                            ? 0 : FLAG_MORE_FRAGMENTS)));
+            fragment.setFragmentOffset((short) ((baseOffset + offset) / 8));
+            fragment.setPayload(new Data(payloadData, offset, dataLength));
+            fragments.add(fragment);
+            offset += dataLength;
+        }
+        return fragments;
+    }
+
+    /**
+     * Returns the options whose copied flag is set, padded to a multiple of 4
+     * bytes, for use in all fragments after the first.
+     */
+    private static byte[] copiedOptions(byte[] options) {
+        if (options == null)
+            return null;
+        byte[] copied = new byte[options.length];
+        int length = 0;
+        int i = 0;
+        while (i < options.length) {
+            int type = options[i] & 0xff;
+            if (type == 0)
+                break;
+            if (type == 1) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= options.length)
+                break;
+            int optionLength = options[i + 1] & 0xff;
+            if (optionLength < 2 || i + optionLength > options.length)
+                break;
+            if ((type & 0x80) != 0) {
+                System.arraycopy(options, i, copied, length, optionLength);
+                length += optionLength;
+            }
+            i += optionLength;
+        }
+        if (length == 0)
+            return null;
+        return Arrays.copyOf(copied, (length + 3) & ~3);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
@@ -390,17 +693,48 @@ public class IPv4 extends BasePacket {
      */
     public static int toIPv4Address(String ipAddress) {
         if (ipAddress == null)
-            throw new IllegalArgumentException("Specified IPv4 address must" +
-                "contain 4 sets of numerical digits separated by periods");
-        String[] octets = ipAddress.split("\\.");
-        if (octets.length != 4) 
-            throw new IllegalArgumentException("Specified IPv4 address must" +
-                "contain 4 sets of numerical digits separated by periods");
+            throw invalidIPv4Address();
+        return toIPv4Address(ipAddress, 0, ipAddress.length());
+    }
 
+    private static IllegalArgumentException invalidIPv4Address() {
+        return new IllegalArgumentException("Specified IPv4 address must" +
+            "contain 4 sets of numerical digits separated by periods");
+    }
+
+    /**
+     * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx within a range of
+     * characters and returns the corresponding 32 bit integer, scanning the
+     * characters directly rather than splitting them into substrings.
+     * @param chars the characters containing the address
+     * @param start index of the first character of the address
+     * @param end index after the last character of the address
+     * @return
+     */
+    public static int toIPv4Address(CharSequence chars, int start, int end) {
         int result = 0;
-        for (int i = 0; i < 4; ++i) {
-            result |= Integer.valueOf(octets[i]) << ((3-i)*8);
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            char c = (i == end) ? '.' : chars.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++octets > 4)
+                    throw invalidIPv4Address();
+                result = (result << 8) | value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+                if (value > 255)
+                    throw invalidIPv4Address();
+            } else {
+                throw invalidIPv4Address();
+            }
         }
+        if (octets != 4)
+            throw invalidIPv4Address();
         return result;
     }
 
@@ -427,15 +761,22 @@ public class IPv4 extends BasePacket {
      * @return
      */
     public static String fromIPv4Address(int ipAddress) {
-        StringBuffer sb = new StringBuffer();
-        int result = 0;
-        for (int i = 0; i < 4; ++i) {
-            result = (ipAddress >> ((3-i)*8)) & 0xff;
-            sb.append(Integer.valueOf(result).toString());
-            if (i != 3)
-                sb.append(".");
-        }
-        return sb.toString();
+        return appendIPv4Address(new StringBuilder(15), ipAddress).toString();
+    }
+
+    /**
+     * Appends an IPv4 address in the form xxx.xxx.xxx.xxx, ie 192.168.0.1
+     * 
+     * @param sb the builder to append to
+     * @param ipAddress
+     * @return sb
+     */
+    public static StringBuilder appendIPv4Address(StringBuilder sb, int ipAddress) {
+        sb.append((ipAddress >>> 24) & 0xff).append('.');
+        sb.append((ipAddress >>> 16) & 0xff).append('.');
+        sb.append((ipAddress >>> 8) & 0xff).append('.');
+        sb.append(ipAddress & 0xff);
+        return sb;
     }
 
     /**
@@ -449,13 +790,14 @@ public class IPv4 extends BasePacket {
     public static String fromIPv4AddressCollection(Collection<Integer> ipAddresses) {
         if (ipAddresses == null)
             return "null";
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         sb.append("[");
         for (Integer ip : ipAddresses) {
-            sb.append(fromIPv4Address(ip));
-            sb.append(",");
+            if (sb.length() > 1)
+                sb.append(",");
+            appendIPv4Address(sb, ip);
         }
-        sb.replace(sb.length()-1, sb.length(), "]");
+        sb.append("]");
         return sb.toString();
     }
 
@@ -466,16 +808,7 @@ public class IPv4 extends BasePacket {
      * @return The IP address separated into bytes
      */
     public static byte[] toIPv4AddressBytes(String ipAddress) {
-        String[] octets = ipAddress.split("\\.");
-        if (octets.length != 4) 
-            throw new IllegalArgumentException("Specified IPv4 address must" +
-                "contain 4 sets of numerical digits separated by periods");
-
-        byte[] result = new byte[4];
-        for (int i = 0; i < 4; ++i) {
-            result[i] = Integer.valueOf(octets[i]).byteValue();
-        }
-        return result;
+        return toIPv4AddressBytes(toIPv4Address(ipAddress));
     }
     
     /**
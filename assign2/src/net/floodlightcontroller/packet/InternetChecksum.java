@@ -0,0 +1,125 @@
+package net.floodlightcontroller.packet;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Helpers for the ones-complement Internet checksum (RFC 1071), including
+ * incremental updates of an existing checksum (RFC 1624).
+ */
+public class InternetChecksum {
+    private static final VarHandle LONG_BE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_BE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT_BE =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Computes the checksum of a range of bytes; an odd trailing byte is
+     * padded with zero.
+     * @param data the bytes to checksum
+     * @param offset offset of the first byte to checksum
+     * @param length number of bytes to checksum
+     * @param initial partial sum to start from, e.g. for a pseudo header
+     * @return the ones-complement of the ones-complement sum
+     */
+    public static short checksum(byte[] data, int offset, int length, int initial) {
+        return (short) ~sum(data, offset, length, initial);
+    }
+
+    /**
+     * Computes the folded ones-complement sum of a range of bytes. The bytes
+     * are read eight at a time, and the two 32-bit halves of each read are
+     * added into a 64-bit accumulator so carries are only folded once at the
+     * end; since 2^16 is congruent to 1 mod 0xffff this yields the same sum
+     * as adding 16-bit words.
+     * @param data the bytes to sum
+     * @param offset offset of the first byte to sum
+     * @param length number of bytes to sum
+     * @param initial partial sum to start from
+     * @return the folded 16-bit sum, not complemented
+     */
+    public static int sum(byte[] data, int offset, int length, int initial) {
+        long acc = initial & 0xffffffffL;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            long word = (long) LONG_BE.get(data, i);
+            acc += (word >>> 32) + (word & 0xffffffffL);
+        }
+        if (i + 4 <= end) {
+            acc += (int) INT_BE.get(data, i) & 0xffffffffL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            acc += (short) SHORT_BE.get(data, i) & 0xffff;
+            i += 2;
+        }
+        // pad to an even number of bytes
+        if (i < end) {
+            acc += (data[i] & 0xff) << 8;
+        }
+        acc = (acc >>> 32) + (acc & 0xffffffffL);
+        acc = (acc >>> 32) + (acc & 0xffffffffL);
+        return fold((int) (acc >>> 16) + (int) (acc & 0xffff));
+    }
+
+    /**
+     * Computes the partial sum of the IPv4 pseudo header used by TCP and UDP.
+     * @param sourceAddress the IPv4 source address
+     * @param destinationAddress the IPv4 destination address
+     * @param protocol the IPv4 protocol number
+     * @param length the length of the transport header and payload
+     * @return the unfolded partial sum
+     */
+    public static int pseudoHeaderSum(int sourceAddress, int destinationAddress,
+            byte protocol, int length) {
+        return (sourceAddress >>> 16) + (sourceAddress & 0xffff)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xffff)
+                + (protocol & 0xff) + (length & 0xffff);
+    }
+
+    /**
+     * Incrementally updates a checksum after a single 16-bit word of the
+     * covered data changed from {@code oldWord} to {@code newWord}. Uses
+     * equation 3 of RFC 1624: HC' = ~(~HC + ~m + m').
+     * @param checksum the checksum currently stored in the header
+     * @param oldWord the old value of the modified word
+     * @param newWord the new value of the modified word
+     * @return the updated checksum
+     */
+    public static short update(short checksum, short oldWord, short newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Incrementally updates a checksum after a 32-bit field (e.g. an IPv4
+     * address) covered by it changed from {@code oldValue} to
+     * {@code newValue}.
+     * @param checksum the checksum currently stored in the header
+     * @param oldValue the old value of the modified field
+     * @param newValue the new value of the modified field
+     * @return the updated checksum
+     */
+    public static short update(short checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xffff)
+                + (~(oldValue >>> 16) & 0xffff) + (~oldValue & 0xffff)
+                + (newValue >>> 16) + (newValue & 0xffff);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Folds the carries of a 32-bit accumulator into its low 16 bits.
+     * @param sum the accumulated ones-complement sum
+     * @return the folded 16-bit sum
+     */
+    public static int fold(int sum) {
+        sum = (sum >>> 16) + (sum & 0xffff);
+        sum = (sum >>> 16) + (sum & 0xffff);
+        return sum & 0xffff;
+    }
+}
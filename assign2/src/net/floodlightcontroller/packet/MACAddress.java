@@ -1,6 +1,8 @@
 package net.floodlightcontroller.packet;
 
-import java.util.Arrays;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 
 /**
  * The class representing MAC address.
@@ -9,10 +11,40 @@ import java.util.Arrays;
  */
 public class MACAddress {
     public static final int MAC_ADDRESS_LENGTH = 6;
-    private byte[] address = new byte[MAC_ADDRESS_LENGTH];
+    private static final long ADDRESS_MASK = 0xffffffffffffL;
+    private static final long MULTICAST_BIT = 0x010000000000L;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final VarHandle INT_BE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT_BE =
+            MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    /** The broadcast address ff:ff:ff:ff:ff:ff */
+    public static final MACAddress BROADCAST = new MACAddress(ADDRESS_MASK);
+
+    /** Most canonical instances kept, including the broadcast address */
+    private static final int MAX_INTERNED = 64;
+
+    /** Canonical instances returned by {@link #valueOf(long)}, oldest first
+     *  after the broadcast address; kept small (interface addresses) so a
+     *  linear scan beats hashing a boxed key */
+    private static volatile MACAddress[] interned = new MACAddress[] { BROADCAST };
+
+    private final long address;
 
     public MACAddress(byte[] address) {
-        this.address = Arrays.copyOf(address, MAC_ADDRESS_LENGTH);
+        long value = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            value <<= 8;
+            if (i < address.length)
+                value |= address[i] & 0xffL;
+        }
+        this.address = value;
+    }
+
+    private MACAddress(long address) {
+        this.address = address & ADDRESS_MASK;
     }
 
     /**
@@ -22,20 +54,51 @@ public class MACAddress {
      * @throws IllegalArgumentException if the string cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(String address) {
-        String[] elements = address.split(":");
-        if (elements.length != MAC_ADDRESS_LENGTH) {
-            throw new IllegalArgumentException(
-                    "Specified MAC Address must contain 12 hex digits" +
-                    " separated pairwise by :'s.");
-        }
+        return valueOf(address, 0, address.length());
+    }
 
-        byte[] addressInBytes = new byte[MAC_ADDRESS_LENGTH];
-        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
-            String element = elements[i];
-            addressInBytes[i] = (byte)Integer.parseInt(element, 16);
+    /**
+     * Returns a MAC address instance representing a range of characters of
+     * the form 00:aa:11:bb:22:cc, scanning the characters directly rather
+     * than splitting them into substrings.
+     * @param chars the characters containing the MAC address.
+     * @param start index of the first character of the address.
+     * @param end index after the last character of the address.
+     * @return a MAC Address instance representing the specified characters.
+     * @throws IllegalArgumentException if the characters cannot be parsed as a MAC address.
+     */
+    public static MACAddress valueOf(CharSequence chars, int start, int end) {
+        long value = 0;
+        int elements = 0;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            char c = (i == end) ? ':' : chars.charAt(i);
+            if (c == ':') {
+                if (digits == 0 || ++elements > MAC_ADDRESS_LENGTH)
+                    throw invalidMACAddress();
+                digits = 0;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0 || digits == 2)
+                throw invalidMACAddress();
+            // a single digit group such as "a" means 0x0a
+            if (digits == 0)
+                value = (value << 8) | digit;
+            else
+                value = (value & ~0xffL) | ((value & 0xf) << 4) | digit;
+            digits++;
         }
+        if (elements != MAC_ADDRESS_LENGTH)
+            throw invalidMACAddress();
 
-        return new MACAddress(addressInBytes);
+        return valueOf(value);
+    }
+
+    private static IllegalArgumentException invalidMACAddress() {
+        return new IllegalArgumentException(
+                "Specified MAC Address must contain 12 hex digits" +
+                " separated pairwise by :'s.");
     }
 
     /**
@@ -49,7 +112,18 @@ public class MACAddress {
             throw new IllegalArgumentException("the length is not " + MAC_ADDRESS_LENGTH);
         }
 
-        return new MACAddress(address);
+        return valueOf(address, 0);
+    }
+
+    /**
+     * Returns a MAC address instance representing the six bytes at a given
+     * offset in a buffer, without copying them.
+     * @param data the buffer to read from.
+     * @param offset the offset of the first byte of the address.
+     * @return a MAC address instance representing the bytes read.
+     */
+    public static MACAddress valueOf(byte[] data, int offset) {
+        return valueOf(read(data, offset));
     }
 
     /**
@@ -60,16 +134,71 @@ public class MACAddress {
      * @throws IllegalArgumentException if the long value cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(long address) {
-        byte[] addressInBytes = new byte[] {
-                (byte)((address >> 40) & 0xff),
-                (byte)((address >> 32) & 0xff),
-                (byte)((address >> 24) & 0xff),
-                (byte)((address >> 16) & 0xff),
-                (byte)((address >> 8 ) & 0xff),
-                (byte)((address >> 0) & 0xff)
-        };
+        address &= ADDRESS_MASK;
+        for (MACAddress mac : interned) {
+            if (mac.address == address)
+                return mac;
+        }
+        return new MACAddress(address);
+    }
+
+    /**
+     * Reads the six bytes at a given offset in a buffer as a MAC address.
+     * @param data the buffer to read from.
+     * @param offset the offset of the first byte of the address.
+     * @return the address in the lower 48 bits of a long.
+     */
+    public static long read(byte[] data, int offset) {
+        return (((int) INT_BE.get(data, offset) & 0xffffffffL) << 16)
+                | ((short) SHORT_BE.get(data, offset + 4) & 0xffffL);
+    }
+
+    /**
+     * Writes a MAC address held in the lower 48 bits of a long into a buffer.
+     * @param address the address to write.
+     * @param data the buffer to write to.
+     * @param offset the offset at which to write the first byte of the address.
+     */
+    public static void write(long address, byte[] data, int offset) {
+        INT_BE.set(data, offset, (int) (address >>> 16));
+        SHORT_BE.set(data, offset + 4, (short) address);
+    }
 
-        return new MACAddress(addressInBytes);
+    /**
+     * Writes this MAC address into a buffer.
+     * @param data the buffer to write to.
+     * @param offset the offset at which to write the first byte of the address.
+     */
+    public void writeTo(byte[] data, int offset) {
+        write(this.address, data, offset);
+    }
+
+    /**
+     * Returns a canonical instance for this address, which is also returned by
+     * subsequent calls to {@code valueOf} for the same address. Intended for
+     * the small set of addresses seen on most frames, such as the addresses
+     * of a device's own interfaces. The set is bounded: once it is full, the
+     * oldest address interned is forgotten, though existing references to
+     * its instance remain valid.
+     * @return the canonical instance for this address.
+     */
+    public MACAddress intern() {
+        synchronized (MACAddress.class) {
+            MACAddress[] current = interned;
+            for (MACAddress mac : current) {
+                if (mac.address == this.address)
+                    return mac;
+            }
+            // Keep the broadcast address, and evict the oldest other one if
+            // the set is full
+            int kept = Math.min(current.length, MAX_INTERNED - 1);
+            MACAddress[] updated = new MACAddress[kept + 1];
+            updated[0] = BROADCAST;
+            System.arraycopy(current, current.length - kept + 1, updated, 1, kept - 1);
+            updated[kept] = this;
+            interned = updated;
+            return this;
+        }
     }
 
     /**
@@ -77,7 +206,7 @@ public class MACAddress {
      * @return the length of the {@code MACAddress}.
      */
     public int length() {
-        return address.length;
+        return MAC_ADDRESS_LENGTH;
     }
 
     /**
@@ -85,7 +214,9 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code byte} array.
      */
     public byte[] toBytes() {
-        return Arrays.copyOf(address, address.length);
+        byte[] bytes = new byte[MAC_ADDRESS_LENGTH];
+        write(this.address, bytes, 0);
+        return bytes;
     }
 
     /**
@@ -93,12 +224,7 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code long}.
      */
     public long toLong() {
-        long mac = 0;
-        for (int i = 0; i < 6; i++) {
-            long t = (address[i] & 0xffL) << ((5 - i) * 8);
-            mac |= t;
-        }
-        return mac;
+        return this.address;
     }
 
     /**
@@ -106,11 +232,7 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the broadcast address.
      */
     public boolean isBroadcast() {
-        for (byte b : address) {
-            if (b != -1) // checks if equal to 0xff
-                return false;
-        }
-        return true;
+        return this.address == ADDRESS_MASK;
     }
 
     /**
@@ -121,7 +243,7 @@ public class MACAddress {
         if (isBroadcast()) {
             return false;
         }
-        return (address[0] & 0x01) != 0;
+        return (this.address & MULTICAST_BIT) != 0;
     }
 
     @Override
@@ -135,23 +257,33 @@ public class MACAddress {
         }
 
         MACAddress other = (MACAddress)o;
-        return Arrays.equals(this.address, other.address);
+        return this.address == other.address;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.address);
+        return Long.hashCode(this.address);
     }
 
     @Override
     public String toString() {
-        StringBuilder builder = new StringBuilder();
-        for (byte b: address) {
-            if (builder.length() > 0) {
-                builder.append(":");
+        return appendTo(new StringBuilder(17)).toString();
+    }
+
+    /**
+     * Appends the MAC address in the form 00:AA:11:BB:22:CC.
+     * @param builder the builder to append to.
+     * @return the builder.
+     */
+    public StringBuilder appendTo(StringBuilder builder) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (shift < 40) {
+                builder.append(':');
             }
-            builder.append(String.format("%02X", b & 0xFF));
+            int b = (int) (this.address >>> shift) & 0xff;
+            builder.append(HEX_DIGITS[b >>> 4]);
+            builder.append(HEX_DIGITS[b & 0xf]);
         }
-        return builder.toString();
+        return builder;
     }
 }
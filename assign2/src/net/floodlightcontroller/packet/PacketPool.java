@@ -0,0 +1,185 @@
+package net.floodlightcontroller.packet;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional thread-local pools of packet objects and receive buffers.
+ *
+ * Buffers often cross threads, e.g. taken by the thread reading from the
+ * server and released by the worker that handled the packet, so a thread
+ * whose buffer pool is full hands a batch of buffers to a shared pool, from
+ * which a thread whose pool is empty takes them.
+ *
+ * Pooling is off unless the JVM is started with {@code -Dvnet.packetPool=true};
+ * when off, {@link #obtain(Class)} and {@link #obtainBuffer(int)} simply
+ * allocate and releasing is a no-op. Objects handed out by {@code obtain}
+ * may hold stale field values and are meant to be filled in by
+ * {@link IPacket#deserialize(byte[], int, int)}.
+ *
+ * With {@code -Dvnet.packetPool.debug=true} released packets are never
+ * reused; a later call to a packet's getters or {@code serialize()}, or a
+ * second release, throws an {@link IllegalStateException}, and released
+ * buffers are overwritten with {@link #POISON} so stale reads stand out.
+ * Setters are not checked.
+ */
+public class PacketPool {
+    public static final boolean ENABLED = Boolean.getBoolean("vnet.packetPool");
+    public static final boolean DEBUG = Boolean.getBoolean("vnet.packetPool.debug");
+
+    /** Byte written over released buffers in debug mode */
+    public static final byte POISON = (byte) 0xde;
+
+    /** Maximum number of idle packets kept per class and thread */
+    private static final int MAX_IDLE_PACKETS = 256;
+
+    /** Maximum number of idle buffers kept per thread */
+    private static final int MAX_IDLE_BUFFERS = 64;
+
+    /** Number of buffers moved to or from the shared pool at a time */
+    private static final int BUFFER_BATCH = MAX_IDLE_BUFFERS / 2;
+
+    /** Maximum number of batches kept in the shared pool */
+    private static final int MAX_SHARED_BATCHES = 64;
+
+    /** Smallest buffer allocated while pooling, so any released buffer can
+     *  be reused for a standard frame and its command header */
+    private static final int MIN_BUFFER_LENGTH = 2048;
+
+    private static final Queue<byte[][]> sharedBuffers =
+            new ConcurrentLinkedQueue<byte[][]>();
+    private static final AtomicInteger sharedBatches = new AtomicInteger();
+
+    private static final ThreadLocal<PacketPool> pools = new ThreadLocal<PacketPool>() {
+        @Override
+        protected PacketPool initialValue() {
+            return new PacketPool();
+        }
+    };
+
+    private final Map<Class<?>, ArrayDeque<BasePacket>> idlePackets =
+            new HashMap<Class<?>, ArrayDeque<BasePacket>>();
+    private final ArrayDeque<byte[]> idleBuffers = new ArrayDeque<byte[]>();
+
+    private PacketPool() {
+    }
+
+    /**
+     * Gets a packet object of the given class, reusing a released one from
+     * the calling thread's pool if possible.
+     * @param clazz the packet class
+     * @return a packet object whose fields must be (re)initialized
+     */
+    public static <T extends IPacket> T obtain(Class<T> clazz) {
+        if (ENABLED && !DEBUG) {
+            ArrayDeque<BasePacket> idle = pools.get().idlePackets.get(clazz);
+            if (idle != null) {
+                BasePacket packet = idle.pollFirst();
+                if (packet != null) {
+                    packet.released = false;
+                    packet.parent = null;
+                    packet.payload = null;
+                    packet.wireData = null;
+                    return clazz.cast(packet);
+                }
+            }
+        }
+        try {
+            return clazz.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not instantiate " + clazz.getName(), e);
+        }
+    }
+
+    /**
+     * Returns a packet object to the calling thread's pool. The caller must
+     * not use the packet afterwards.
+     * @param packet the packet to release
+     */
+    static void release(BasePacket packet) {
+        if (DEBUG && packet.released)
+            throw new IllegalStateException("Packet released twice: "
+                    + packet.getClass().getSimpleName());
+        packet.released = true;
+        if (!ENABLED || DEBUG)
+            return;
+
+        Map<Class<?>, ArrayDeque<BasePacket>> idlePackets = pools.get().idlePackets;
+        ArrayDeque<BasePacket> idle = idlePackets.get(packet.getClass());
+        if (null == idle) {
+            idle = new ArrayDeque<BasePacket>();
+            idlePackets.put(packet.getClass(), idle);
+        }
+        if (idle.size() < MAX_IDLE_PACKETS)
+            idle.addFirst(packet);
+    }
+
+    /**
+     * Gets a buffer of at least the given length, reusing a released one from
+     * the calling thread's pool, or else from the shared pool, if possible.
+     * @param minLength minimum length of the buffer
+     * @return a buffer whose contents are undefined
+     */
+    public static byte[] obtainBuffer(int minLength) {
+        if (ENABLED && !DEBUG) {
+            ArrayDeque<byte[]> idle = pools.get().idleBuffers;
+            byte[] buffer = takeBuffer(idle, minLength);
+            if (null == buffer) {
+                byte[][] batch = sharedBuffers.poll();
+                if (batch != null) {
+                    sharedBatches.decrementAndGet();
+                    for (byte[] shared : batch)
+                        idle.addLast(shared);
+                    buffer = takeBuffer(idle, minLength);
+                }
+            }
+            if (buffer != null)
+                return buffer;
+            return new byte[Math.max(minLength, MIN_BUFFER_LENGTH)];
+        }
+        return new byte[minLength];
+    }
+
+    private static byte[] takeBuffer(ArrayDeque<byte[]> idle, int minLength) {
+        for (int i = idle.size(); i > 0; i--) {
+            byte[] buffer = idle.pollFirst();
+            if (buffer.length >= minLength)
+                return buffer;
+            idle.addLast(buffer);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a buffer to the calling thread's pool. The caller, and any
+     * packet parsed from the buffer, must not use it afterwards.
+     * @param buffer the buffer to release
+     */
+    public static void releaseBuffer(byte[] buffer) {
+        if (DEBUG) {
+            Arrays.fill(buffer, POISON);
+            return;
+        }
+        if (!ENABLED)
+            return;
+
+        ArrayDeque<byte[]> idle = pools.get().idleBuffers;
+        if (idle.size() >= MAX_IDLE_BUFFERS) {
+            // Pass the least recently released buffers on to threads that
+            // take more buffers than they release
+            if (sharedBatches.get() >= MAX_SHARED_BATCHES)
+                return;
+            byte[][] batch = new byte[BUFFER_BATCH][];
+            for (int i = 0; i < BUFFER_BATCH; i++)
+                batch[i] = idle.pollLast();
+            sharedBatches.incrementAndGet();
+            sharedBuffers.offer(batch);
+        }
+        idle.addFirst(buffer);
+    }
+}
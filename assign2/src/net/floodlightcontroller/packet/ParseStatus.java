@@ -0,0 +1,21 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Result of checking that a packet can be deserialized, as returned by the
+ * static {@code validate} methods of the packet classes. Validating never
+ * throws, so malformed input can be dropped and counted cheaply.
+ */
+public enum ParseStatus {
+    /** The packet is well formed and may be deserialized */
+    OK,
+    /** The packet ends before one of its headers or its stated length */
+    TRUNCATED,
+    /** A header length field (IPv4 IHL, TCP data offset) is out of range */
+    BAD_IHL,
+    /** A checksum does not match the contents of the packet */
+    BAD_CHECKSUM,
+    /** A length field is inconsistent with the header or the contents */
+    BAD_LENGTH,
+    /** The frame arrived on an interface the device does not know */
+    UNKNOWN_INTERFACE
+}
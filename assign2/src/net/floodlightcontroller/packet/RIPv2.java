@@ -24,24 +24,65 @@ public class RIPv2 extends BasePacket
         this.entries = new LinkedList<RIPv2Entry>();
     }
 
+	/**
+	 * Creates a deep copy of another packet, copying fields directly rather
+	 * than serializing and reparsing.
+	 * @param other the packet to copy
+	 */
+	public RIPv2(RIPv2 other)
+	{
+		super(other);
+		this.command = other.command;
+		this.version = other.version;
+		this.entries = new LinkedList<RIPv2Entry>();
+		for (RIPv2Entry entry : other.entries)
+		{ this.entries.add(new RIPv2Entry(entry)); }
+	}
+
+	@Override
+	public Object clone()
+	{ return new RIPv2(this); }
+
 	public void setEntries(List<RIPv2Entry> entries)
-	{ this.entries = entries; }
+	{
+		this.invalidate();
+		this.entries = entries;
+	}
 
+	/**
+	 * @return the entries, which the caller may modify; encapsulating
+	 *         packets therefore stop reusing the bytes they were
+	 *         deserialized from
+	 */
 	public List<RIPv2Entry> getEntries()
-	{ return this.entries; }
+	{
+		this.checkReleased();
+		this.invalidate();
+		return this.entries;
+	}
 
     public void addEntry(RIPv2Entry entry)
-    { this.entries.add(entry); }
+    {
+        this.invalidate();
+        this.entries.add(entry);
+    }
 	
 	public void setCommand(byte command)
-	{ this.command = command; }
+	{
+		this.invalidate();
+		this.command = command;
+	}
 
 	public byte getCommand()
-	{ return this.command; }
+	{
+		this.checkReleased();
+		return this.command;
+	}
 
 	@Override
 	public byte[] serialize() 
     {
+		this.checkReleased();
 		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
 		byte[] data = new byte[length];
 		ByteBuffer bb = ByteBuffer.wrap(data);
@@ -55,6 +96,22 @@ public class RIPv2 extends BasePacket
 		return data;
 	}
 
+	/**
+	 * Checks, without throwing, that a packet can be deserialized.
+	 * @param data the buffer holding the packet
+	 * @param offset offset of the packet in the buffer
+	 * @param length length of the packet
+	 * @return {@link ParseStatus#OK} or the reason the packet is malformed
+	 */
+	public static ParseStatus validate(byte[] data, int offset, int length)
+	{
+		if (length < 4)
+		{ return ParseStatus.TRUNCATED; }
+		if ((length - 4) % 20 != 0)
+		{ return ParseStatus.BAD_LENGTH; }
+		return ParseStatus.OK;
+	}
+
 	@Override
 	public IPacket deserialize(byte[] data, int offset, int length) 
 	{
@@ -99,11 +156,12 @@ public class RIPv2 extends BasePacket
 
 	public String toString()
 	{
-		String x = String.format("RIP : {command=%d, version=%d, entries={",
-                this.command, this.version);
+		StringBuilder sb = new StringBuilder("RIP : {command=");
+		sb.append(this.command).append(", version=").append(this.version);
+		sb.append(", entries={");
 		for (RIPv2Entry entry : this.entries)
-		{ x = x + entry.toString() + ","; }
-        x = x + "}}";
-		return x;
+		{ entry.appendTo(sb).append(','); }
+		sb.append("}}");
+		return sb.toString();
 	}
 }
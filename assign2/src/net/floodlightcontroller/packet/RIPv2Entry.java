@@ -27,13 +27,36 @@ public class RIPv2Entry
         this.metric = metric;
     }
 
+    public RIPv2Entry(RIPv2Entry other)
+    {
+        this.addressFamily = other.addressFamily;
+        this.routeTag = other.routeTag;
+        this.address = other.address;
+        this.subnetMask = other.subnetMask;
+        this.nextHopAddress = other.nextHopAddress;
+        this.metric = other.metric;
+    }
+
 	public String toString()
+	{ return this.appendTo(new StringBuilder(128)).toString(); }
+
+    /**
+     * Appends a description of the entry, as returned by toString.
+     * @param sb the builder to append to
+     * @return the builder
+     */
+	public StringBuilder appendTo(StringBuilder sb)
 	{
-        return String.format("RIPv2Entry : {addressFamily=%d, routeTag=%d, address=%s, subnetMask=%s, nextHopAddress=%s, metric=%d}", 
-                this.addressFamily, this.routeTag, 
-                IPv4.fromIPv4Address(this.address), 
-                IPv4.fromIPv4Address(this.subnetMask),
-                IPv4.fromIPv4Address(this.nextHopAddress), this.metric);
+        sb.append("RIPv2Entry : {addressFamily=").append(this.addressFamily);
+        sb.append(", routeTag=").append(this.routeTag);
+        sb.append(", address=");
+        IPv4.appendIPv4Address(sb, this.address);
+        sb.append(", subnetMask=");
+        IPv4.appendIPv4Address(sb, this.subnetMask);
+        sb.append(", nextHopAddress=");
+        IPv4.appendIPv4Address(sb, this.nextHopAddress);
+        sb.append(", metric=").append(this.metric).append('}');
+        return sb;
 	}
 
     public short getAddressFamily()
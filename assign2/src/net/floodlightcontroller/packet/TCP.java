@@ -35,10 +35,38 @@ public class TCP extends BasePacket {
     protected short urgentPointer;
     protected byte[] options;
 
+    public TCP() {
+    }
+
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public TCP(TCP other) {
+        super(other);
+        this.sourcePort = other.sourcePort;
+        this.destinationPort = other.destinationPort;
+        this.sequence = other.sequence;
+        this.acknowledge = other.acknowledge;
+        this.dataOffset = other.dataOffset;
+        this.flags = other.flags;
+        this.windowSize = other.windowSize;
+        this.checksum = other.checksum;
+        this.urgentPointer = other.urgentPointer;
+        this.options = (other.options == null) ? null : other.options.clone();
+    }
+
+    @Override
+    public Object clone() {
+        return new TCP(this);
+    }
+
     /**
      * @return the sourcePort
      */
     public short getSourcePort() {
+        checkReleased();
         return sourcePort;
     }
 
@@ -46,6 +74,7 @@ public class TCP extends BasePacket {
      * @param sourcePort the sourcePort to set
      */
     public TCP setSourcePort(short sourcePort) {
+        invalidate();
         this.sourcePort = sourcePort;
         return this;
     }
@@ -54,6 +83,7 @@ public class TCP extends BasePacket {
      * @return the destinationPort
      */
     public short getDestinationPort() {
+        checkReleased();
         return destinationPort;
     }
 
@@ -61,6 +91,7 @@ public class TCP extends BasePacket {
      * @param destinationPort the destinationPort to set
      */
     public TCP setDestinationPort(short destinationPort) {
+        invalidate();
         this.destinationPort = destinationPort;
         return this;
     }
@@ -69,54 +100,105 @@ public class TCP extends BasePacket {
      * @return the checksum
      */
     public short getChecksum() {
+        checkReleased();
         return checksum;
     }
     
+    /**
+     * Rewrites the source port and incrementally updates the checksum.
+     * @param sourcePort the new source port
+     */
+    public TCP rewriteSourcePort(short sourcePort) {
+        invalidate();
+        if (this.checksum != 0)
+            this.checksum = InternetChecksum.update(this.checksum, this.sourcePort, sourcePort);
+        this.sourcePort = sourcePort;
+        return this;
+    }
+
+    /**
+     * Rewrites the destination port and incrementally updates the checksum.
+     * @param destinationPort the new destination port
+     */
+    public TCP rewriteDestinationPort(short destinationPort) {
+        invalidate();
+        if (this.checksum != 0)
+            this.checksum = InternetChecksum.update(this.checksum, this.destinationPort, destinationPort);
+        this.destinationPort = destinationPort;
+        return this;
+    }
+
+    /**
+     * Incrementally updates the checksum after an address in the IPv4 pseudo
+     * header changed.
+     * @param oldAddress the previous address
+     * @param newAddress the new address
+     */
+    public TCP updatePseudoHeaderAddress(int oldAddress, int newAddress) {
+        invalidate();
+        if (this.checksum != 0)
+            this.checksum = InternetChecksum.update(this.checksum, oldAddress, newAddress);
+        return this;
+    }
+
     public int getSequence() {
+        checkReleased();
         return this.sequence;
     }
     public TCP setSequence(int seq) {
+        invalidate();
         this.sequence = seq;
         return this;
     }
     public int getAcknowledge() {
+        checkReleased();
         return this.acknowledge;
     }
     public TCP setAcknowledge(int ack) {
+        invalidate();
         this.acknowledge = ack;
         return this;
     }
     public byte getDataOffset() {
+        checkReleased();
         return this.dataOffset;
     }
     public TCP setDataOffset(byte offset) {
+        invalidate();
         this.dataOffset = offset;
         return this;
     }
     public short getFlags() {
+        checkReleased();
         return this.flags;
     }
     public TCP setFlags(short flags) {
+        invalidate();
         this.flags = flags;
         return this;
     }
     public short getWindowSize() {
+        checkReleased();
         return this.windowSize;
     }
     public TCP setWindowSize(short windowSize) {
+        invalidate();
         this.windowSize = windowSize;
         return this;
     }
     public short getTcpChecksum() {
+        checkReleased();
         return this.checksum;
     }
     public TCP setTcpChecksum(short checksum) {
+        invalidate();
         this.checksum = checksum;
         return this;
     }
     
     @Override
     public void resetChecksum() {
+        invalidate();
         this.checksum = 0;
         super.resetChecksum();
     }
@@ -125,13 +207,16 @@ public class TCP extends BasePacket {
         return this.urgentPointer;
     }
     public TCP setUrgentPointer(short urgentPointer) {
+        invalidate();
         this.urgentPointer= urgentPointer;
         return this;
     }
     public byte[] getOptions() {
+        checkReleased();
         return this.options;
     }
     public TCP setOptions(byte[] options) {
+        invalidate();
         this.options = options;
         this.dataOffset = (byte) ((20 + options.length + 3) >> 2);
         return this;
@@ -140,6 +225,7 @@ public class TCP extends BasePacket {
      * @param checksum the checksum to set
      */
     public TCP setChecksum(short checksum) {
+        invalidate();
         this.checksum = checksum;
         return this;
     }
@@ -151,16 +237,16 @@ public class TCP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
         int length;
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
         length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        byte[] payloadData = serializePayload();
+        length += getPayloadLength(payloadData);
 
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -180,39 +266,24 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        writePayload(bb, payloadData);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
-                accumulation += ipv4.getProtocol() & 0xff;
-                accumulation += length & 0xffff;
-            }
-
-            for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation = InternetChecksum.pseudoHeaderSum(
+                        ipv4.getSourceAddress(), ipv4.getDestinationAddress(),
+                        ipv4.getProtocol(), length);
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = InternetChecksum.checksum(data, 0, length, accumulation);
             bb.putShort(16, this.checksum);
         }
         return data;
@@ -256,6 +327,24 @@ public class TCP extends BasePacket {
                (dataOffset == 5 || options.equals(other.options));
     }
 
+    /**
+     * Checks, without throwing, that a segment can be deserialized.
+     * @param data the buffer holding the segment
+     * @param offset offset of the segment in the buffer
+     * @param length length of the segment
+     * @return {@link ParseStatus#OK} or the reason the segment is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        if (length < 20)
+            return ParseStatus.TRUNCATED;
+        int headerLength = ((data[offset + 12] >> 4) & 0xf) * 4;
+        if (headerLength < 20)
+            return ParseStatus.BAD_IHL;
+        if (headerLength > length)
+            return ParseStatus.TRUNCATED;
+        return ParseStatus.OK;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -280,11 +369,14 @@ public class TCP extends BasePacket {
             } catch (IndexOutOfBoundsException e) {
                 this.options = null;
             }
+        } else {
+            this.options = null;
         }
         
-        this.payload = new Data();
+        this.payload = PacketPool.obtain(Data.class);
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
+        this.setWireBytes(data, offset, length);
         return this;
     }
 }
@@ -41,10 +41,32 @@ public class UDP extends BasePacket {
     protected short length;
     protected short checksum;
 
+    public UDP() {
+    }
+
+    /**
+     * Creates a deep copy of another packet, copying fields directly rather
+     * than serializing and reparsing.
+     * @param other the packet to copy
+     */
+    public UDP(UDP other) {
+        super(other);
+        this.sourcePort = other.sourcePort;
+        this.destinationPort = other.destinationPort;
+        this.length = other.length;
+        this.checksum = other.checksum;
+    }
+
+    @Override
+    public Object clone() {
+        return new UDP(this);
+    }
+
     /**
      * @return the sourcePort
      */
     public short getSourcePort() {
+        checkReleased();
         return sourcePort;
     }
 
@@ -52,6 +74,7 @@ public class UDP extends BasePacket {
      * @param sourcePort the sourcePort to set
      */
     public UDP setSourcePort(short sourcePort) {
+        invalidate();
         this.sourcePort = sourcePort;
         return this;
     }
@@ -60,6 +83,7 @@ public class UDP extends BasePacket {
      * @return the destinationPort
      */
     public short getDestinationPort() {
+        checkReleased();
         return destinationPort;
     }
 
@@ -67,14 +91,63 @@ public class UDP extends BasePacket {
      * @param destinationPort the destinationPort to set
      */
     public UDP setDestinationPort(short destinationPort) {
+        invalidate();
         this.destinationPort = destinationPort;
         return this;
     }
 
+    /**
+     * Rewrites the source port and incrementally updates the checksum.
+     * @param sourcePort the new source port
+     */
+    public UDP rewriteSourcePort(short sourcePort) {
+        invalidate();
+        this.checksum = updateChecksum(this.checksum, this.sourcePort, sourcePort);
+        this.sourcePort = sourcePort;
+        return this;
+    }
+
+    /**
+     * Rewrites the destination port and incrementally updates the checksum.
+     * @param destinationPort the new destination port
+     */
+    public UDP rewriteDestinationPort(short destinationPort) {
+        invalidate();
+        this.checksum = updateChecksum(this.checksum, this.destinationPort, destinationPort);
+        this.destinationPort = destinationPort;
+        return this;
+    }
+
+    /**
+     * Incrementally updates the checksum after an address in the IPv4 pseudo
+     * header changed.
+     * @param oldAddress the previous address
+     * @param newAddress the new address
+     */
+    public UDP updatePseudoHeaderAddress(int oldAddress, int newAddress) {
+        invalidate();
+        if (this.checksum != 0) {
+            this.checksum = InternetChecksum.update(this.checksum, oldAddress, newAddress);
+            // a computed checksum of zero is transmitted as all ones (RFC 768)
+            if (this.checksum == 0)
+                this.checksum = (short) 0xffff;
+        }
+        return this;
+    }
+
+    private static short updateChecksum(short checksum, short oldWord, short newWord) {
+        // a zero checksum means none was computed, so there is nothing to adjust
+        if (checksum == 0)
+            return 0;
+        checksum = InternetChecksum.update(checksum, oldWord, newWord);
+        return (checksum == 0) ? (short) 0xffff : checksum;
+    }
+
     /**
      * @return the length
      */
     public short getLength() {
+        checkReleased();
         return length;
     }
 
@@ -82,6 +155,7 @@ public class UDP extends BasePacket {
      * @return the checksum
      */
     public short getChecksum() {
+        checkReleased();
         return checksum;
     }
 
@@ -89,12 +163,14 @@ public class UDP extends BasePacket {
      * @param checksum the checksum to set
      */
     public UDP setChecksum(short checksum) {
+        invalidate();
         this.checksum = checksum;
         return this;
     }
 
     @Override
     public void resetChecksum() {
+        invalidate();
         this.checksum = 0;
         super.resetChecksum();
     }
@@ -106,14 +182,13 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        checkReleased();
+        byte[] cached = getCachedBytes();
+        if (cached != null)
+            return cached;
+        byte[] payloadData = serializePayload();
 
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
+        this.length = (short) (8 + getPayloadLength(payloadData));
 
         byte[] data = new byte[this.length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -122,39 +197,24 @@ public class UDP extends BasePacket {
         bb.putShort(this.destinationPort);
         bb.putShort(this.length);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        writePayload(bb, payloadData);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
-                accumulation += ipv4.getProtocol() & 0xff;
-                accumulation += this.length & 0xffff;
-            }
-
-            for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation = InternetChecksum.pseudoHeaderSum(
+                        ipv4.getSourceAddress(), ipv4.getDestinationAddress(),
+                        ipv4.getProtocol(), this.length);
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = InternetChecksum.checksum(data, 0, this.length, accumulation);
             bb.putShort(6, this.checksum);
         }
         return data;
@@ -197,6 +257,32 @@ public class UDP extends BasePacket {
         return true;
     }
 
+    /**
+     * Checks, without throwing, that a datagram and any payload decoded by
+     * port (see {@link #decodeMap}) can be deserialized.
+     * @param data the buffer holding the datagram
+     * @param offset offset of the datagram in the buffer
+     * @param length length of the datagram
+     * @return {@link ParseStatus#OK} or the reason the datagram is malformed
+     */
+    public static ParseStatus validate(byte[] data, int offset, int length) {
+        if (length < 8)
+            return ParseStatus.TRUNCATED;
+        int udpLength = ((data[offset + 4] & 0xff) << 8) | (data[offset + 5] & 0xff);
+        if (udpLength < 8)
+            return ParseStatus.BAD_LENGTH;
+        if (udpLength > length)
+            return ParseStatus.TRUNCATED;
+        short sourcePort = (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+        short destinationPort = (short) (((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+        Class<? extends IPacket> clazz = UDP.decodeMap.get(destinationPort);
+        if (null == clazz)
+            clazz = UDP.decodeMap.get(sourcePort);
+        if (RIPv2.class == clazz)
+            return RIPv2.validate(data, offset + 8, length - 8);
+        return ParseStatus.OK;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
@@ -207,21 +293,22 @@ public class UDP extends BasePacket {
 
         if (UDP.decodeMap.containsKey(this.destinationPort)) {
             try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
+                this.payload = PacketPool.obtain(UDP.decodeMap.get(this.destinationPort));
             } catch (Exception e) {
                 throw new RuntimeException("Failure instantiating class", e);
             }
         } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
             try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
+                this.payload = PacketPool.obtain(UDP.decodeMap.get(this.sourcePort));
             } catch (Exception e) {
                 throw new RuntimeException("Failure instantiating class", e);
             }
         } else {
-            this.payload = new Data();
+            this.payload = PacketPool.obtain(Data.class);
         }
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
+        this.setWireBytes(data, offset, length);
         return this;
     }
 }
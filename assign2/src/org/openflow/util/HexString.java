@@ -17,51 +17,71 @@
 
 package org.openflow.util;
 
-import java.math.BigInteger;
-
 public class HexString {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Convert a string of bytes to a ':' separated hex string
      * @param bytes
      * @return "0f:ca:fe:de:ad:be:ef"
      */
     public static String toHexString(byte[] bytes) {
-        int i;
-        String ret = "";
-        String tmp;
-        for(i=0; i< bytes.length; i++) {
-            if(i> 0)
-                ret += ":";
-            tmp = Integer.toHexString(U8.f(bytes[i]));
-            if (tmp.length() == 1)
-                ret += "0";
-            ret += tmp; 
+        return appendHexString(new StringBuilder(bytes.length * 3), bytes).toString();
+    }
+
+    /**
+     * Append a string of bytes as a ':' separated hex string
+     * @param sb the builder to append to
+     * @param bytes
+     * @return sb, after appending "0f:ca:fe:de:ad:be:ef"
+     */
+    public static StringBuilder appendHexString(StringBuilder sb, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0)
+                sb.append(':');
+            appendHexByte(sb, U8.f(bytes[i]));
         }
-        return ret;
+        return sb;
     }
     
     public static String toHexString(long val, int padTo) {
-        char arr[] = Long.toHexString(val).toCharArray();
-        String ret = "";
-        // prepend the right number of leading zeros
-        int i = 0;
-        for (; i < (padTo * 2 - arr.length); i++) {
-            ret += "0";
-            if ((i % 2) == 1)
-                ret += ":";
-        }
-        for (int j = 0; j < arr.length; j++) {
-            ret += arr[j];
-            if ((((i + j) % 2) == 1) && (j < (arr.length - 1)))
-                ret += ":";
+        return appendHexString(new StringBuilder(24), val, padTo).toString();
+    }
+
+    /**
+     * Append the bytes of a long as a ':' separated hex string, keeping at
+     * least padTo of its least significant bytes
+     * @param sb the builder to append to
+     * @param val the value to append
+     * @param padTo minimum number of bytes to append
+     * @return sb
+     */
+    public static StringBuilder appendHexString(StringBuilder sb, long val, int padTo) {
+        int bytes = Math.max(padTo, (64 - Long.numberOfLeadingZeros(val) + 7) / 8);
+        boolean leading = true;
+        for (int i = bytes - 1; i >= 0; i--) {
+            int b = (i < 8) ? (int) (val >>> (i * 8)) & 0xff : 0;
+            if (i < bytes - 1)
+                sb.append(':');
+            // like Long.toHexString, the first significant byte beyond the
+            // padding is not zero-filled
+            if (leading && i >= padTo && b < 0x10)
+                sb.append(HEX_DIGITS[b]);
+            else
+                appendHexByte(sb, b);
+            leading = false;
         }
-        return ret;        
+        return sb;
     }
    
     public static String toHexString(long val) {
         return toHexString(val, 8);
     }
-    
+
+    private static void appendHexByte(StringBuilder sb, int b) {
+        sb.append(HEX_DIGITS[b >>> 4]);
+        sb.append(HEX_DIGITS[b & 0xf]);
+    }
     
     /**
      * Convert a string of hex values into a string of bytes
@@ -70,23 +90,56 @@ public class HexString {
      * @throws NumberFormatException If the string can not be parsed
      */ 
     public static byte[] fromHexString(String values) throws NumberFormatException {
-        String[] octets = values.split(":");
-        byte[] ret = new byte[octets.length];
-        
-        for(int i = 0; i < octets.length; i++) {
-            if (octets[i].length() > 2)
+        int octets = 1;
+        for (int i = 0; i < values.length(); i++) {
+            if (values.charAt(i) == ':')
+                octets++;
+        }
+        byte[] ret = new byte[octets];
+
+        int octet = 0;
+        int digits = 0;
+        int value = 0;
+        for (int i = 0; i <= values.length(); i++) {
+            if (i == values.length() || values.charAt(i) == ':') {
+                if (digits == 0)
+                    throw new NumberFormatException("Empty octet in: " + values);
+                ret[octet++] = (byte) value;
+                digits = 0;
+                value = 0;
+                continue;
+            }
+            int digit = Character.digit(values.charAt(i), 16);
+            if (digit < 0)
+                throw new NumberFormatException("Invalid hex digit in: " + values);
+            if (++digits > 2)
                 throw new NumberFormatException("Invalid octet length");
-            ret[i] = Integer.valueOf(octets[i], 16).byteValue();
+            value = (value << 4) | digit;
         }
         return ret;
     }
     
     public static long toLong(String values) throws NumberFormatException {
-        // Long.parseLong() can't handle HexStrings with MSB set. Sigh. 
-        BigInteger bi = new BigInteger(values.replaceAll(":", ""),16);
-        if (bi.bitLength() > 64) 
-            throw new NumberFormatException("Input string too big to fit in long: " + values);
-        return bi.longValue();
+        long value = 0;
+        int significant = 0;
+        boolean any = false;
+        for (int i = 0; i < values.length(); i++) {
+            char c = values.charAt(i);
+            if (c == ':')
+                continue;
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                throw new NumberFormatException("Invalid hex digit in: " + values);
+            any = true;
+            if (significant > 0 || digit != 0)
+                significant++;
+            if (significant > 16) 
+                throw new NumberFormatException("Input string too big to fit in long: " + values);
+            value = (value << 4) | digit;
+        }
+        if (!any)
+            throw new NumberFormatException("No hex digits in: " + values);
+        return value;
     }
 
 }